@@ -0,0 +1,150 @@
+package org.saalfeldlab.watersheds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import scala.Tuple2;
+
+/**
+ * Lock-free union find over dense ids {@code [0, size)} that can be shared
+ * between threads. {@link #findRoot(int)} never retries (failed path halving
+ * CAS are ignored) and {@link #join(int, int)} is linearizable: a root is only
+ * ever linked below a smaller root with a single CAS, which also makes the
+ * smallest id of a set its root.
+ */
+public class UnionFindConcurrent
+{
+
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private final AtomicIntegerArray parents;
+
+	private final AtomicInteger nSets;
+
+	public UnionFindConcurrent( final int size )
+	{
+		this.parents = new AtomicIntegerArray( size );
+		for ( int i = 0; i < size; ++i )
+			this.parents.lazySet( i, i );
+		this.nSets = new AtomicInteger( size );
+	}
+
+	public int findRoot( final int id )
+	{
+		int current = id;
+		while ( true )
+		{
+			final int parent = parents.get( current );
+			final int grandParent = parents.get( parent );
+			if ( parent == grandParent )
+				return parent;
+			// path halving, a failed CAS only means somebody else compressed
+			// the path already
+			parents.compareAndSet( current, parent, grandParent );
+			current = grandParent;
+		}
+	}
+
+	public int join( final int id1, final int id2 )
+	{
+		while ( true )
+		{
+			final int r1 = findRoot( id1 );
+			final int r2 = findRoot( id2 );
+			if ( r1 == r2 )
+				return r1;
+			final int larger = Math.max( r1, r2 );
+			final int smaller = Math.min( r1, r2 );
+			if ( parents.compareAndSet( larger, larger, smaller ) )
+			{
+				nSets.decrementAndGet();
+				return smaller;
+			}
+		}
+	}
+
+	public int size()
+	{
+		return parents.length();
+	}
+
+	public int setCount()
+	{
+		return nSets.get();
+	}
+
+	/**
+	 * Join all pairs of sparse ids in {@code edges} using {@code nThreads}
+	 * threads.
+	 *
+	 * @return all ids (sorted) and their roots (smallest id in set)
+	 */
+	public static Tuple2< long[], long[] > joinAll( final List< Tuple2< long[], long[] > > edges, final int nThreads ) throws InterruptedException, ExecutionException
+	{
+		final long[] ids = uniqueSorted( edges );
+		final UnionFindConcurrent uf = new UnionFindConcurrent( ids.length );
+
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		for ( final Tuple2< long[], long[] > edge : edges )
+		{
+			final long[] ids1 = edge._1();
+			final long[] ids2 = edge._2();
+			for ( int start = 0; start < ids1.length; start += CHUNK_SIZE )
+			{
+				final int from = start;
+				final int to = Math.min( start + CHUNK_SIZE, ids1.length );
+				tasks.add( () -> {
+					for ( int i = from; i < to; ++i )
+						uf.join( Arrays.binarySearch( ids, ids1[ i ] ), Arrays.binarySearch( ids, ids2[ i ] ) );
+					return null;
+				} );
+			}
+		}
+
+		final ExecutorService es = Executors.newFixedThreadPool( nThreads );
+		try
+		{
+			for ( final Future< Void > f : es.invokeAll( tasks ) )
+				f.get();
+		}
+		finally
+		{
+			es.shutdown();
+		}
+
+		final long[] roots = new long[ ids.length ];
+		for ( int i = 0; i < ids.length; ++i )
+			roots[ i ] = ids[ uf.findRoot( i ) ];
+		return new Tuple2<>( ids, roots );
+	}
+
+	private static long[] uniqueSorted( final List< Tuple2< long[], long[] > > edges )
+	{
+		final int total = edges.stream().mapToInt( t -> t._1().length + t._2().length ).sum();
+		final long[] all = new long[ total ];
+		int offset = 0;
+		for ( final Tuple2< long[], long[] > edge : edges )
+		{
+			System.arraycopy( edge._1(), 0, all, offset, edge._1().length );
+			offset += edge._1().length;
+			System.arraycopy( edge._2(), 0, all, offset, edge._2().length );
+			offset += edge._2().length;
+		}
+		Arrays.parallelSort( all );
+
+		int size = 0;
+		for ( int i = 0; i < all.length; ++i )
+			if ( size == 0 || all[ size - 1 ] != all[ i ] )
+				all[ size++ ] = all[ i ];
+		return Arrays.copyOf( all, size );
+	}
+
+}
@@ -0,0 +1,104 @@
+package org.saalfeldlab.watersheds;
+
+import java.util.Arrays;
+
+/**
+ * Growable union find over dense int ids {@code 0, 1, 2, ...} as handed out
+ * by {@link #add()}, e.g. provisional labels of a scan-line connected
+ * components labelling. Sets are always rooted at their smallest id (path
+ * halving), so roots appear in order of first appearance of their set.
+ */
+public class UnionFindDense
+{
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int[] parents;
+
+	private int size;
+
+	private int nSets;
+
+	public UnionFindDense()
+	{
+		this( DEFAULT_CAPACITY );
+	}
+
+	public UnionFindDense( final int capacity )
+	{
+		this.parents = new int[ Math.max( capacity, 1 ) ];
+		this.size = 0;
+		this.nSets = 0;
+	}
+
+	/**
+	 * @return new singleton id
+	 */
+	public int add()
+	{
+		if ( size == parents.length )
+			parents = Arrays.copyOf( parents, parents.length < Integer.MAX_VALUE / 2 ? parents.length * 2 : Integer.MAX_VALUE - 8 );
+		parents[ size ] = size;
+		++nSets;
+		return size++;
+	}
+
+	public int findRoot( int id )
+	{
+		// path halving
+		while ( parents[ id ] != id )
+		{
+			final int grandParent = parents[ parents[ id ] ];
+			parents[ id ] = grandParent;
+			id = grandParent;
+		}
+		return id;
+	}
+
+	/**
+	 * @return root of the joined set, the smaller of both roots
+	 */
+	public int join( final int id1, final int id2 )
+	{
+		final int r1 = findRoot( id1 );
+		final int r2 = findRoot( id2 );
+		if ( r1 == r2 )
+			return r1;
+
+		--nSets;
+		if ( r1 < r2 )
+		{
+			parents[ r2 ] = r1;
+			return r1;
+		}
+		parents[ r1 ] = r2;
+		return r2;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int setCount()
+	{
+		return nSets;
+	}
+
+	/**
+	 * @return consecutive set index {@code 0, 1, ..., setCount() - 1} for
+	 *         each id, sets ordered by their smallest id
+	 */
+	public int[] consecutiveSets()
+	{
+		final int[] sets = new int[ size ];
+		int next = 0;
+		for ( int id = 0; id < size; ++id )
+		{
+			final int root = findRoot( id );
+			sets[ id ] = root == id ? next++ : sets[ root ];
+		}
+		return sets;
+	}
+
+}
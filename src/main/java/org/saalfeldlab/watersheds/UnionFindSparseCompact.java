@@ -0,0 +1,207 @@
+package org.saalfeldlab.watersheds;
+
+import java.util.Arrays;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+/**
+ * Sparse union find over arbitrary long ids. Each id is mapped to a dense int
+ * slot exactly once, all further operations run on primitive parent and rank
+ * arrays (union by rank, path halving). Like {@link UnionFindSparse}, the root
+ * reported for a set is always its smallest id, so results do not depend on
+ * the order in which ids are joined.
+ */
+public class UnionFindSparseCompact
+{
+
+	private static final int NO_SLOT = -1;
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private final TLongIntHashMap slots;
+
+	private long[] ids;
+
+	private int[] parents;
+
+	private byte[] ranks;
+
+	private long[] representatives;
+
+	private int size;
+
+	private int nSets;
+
+	public UnionFindSparseCompact()
+	{
+		this( DEFAULT_CAPACITY );
+	}
+
+	public UnionFindSparseCompact( final int capacity )
+	{
+		final int c = Math.max( capacity, 1 );
+		this.slots = new TLongIntHashMap( c, 0.5f, 0, NO_SLOT );
+		this.ids = new long[ c ];
+		this.parents = new int[ c ];
+		this.ranks = new byte[ c ];
+		this.representatives = new long[ c ];
+		this.size = 0;
+		this.nSets = 0;
+	}
+
+	/**
+	 * Create union find from parent mapping, e.g. as exported by
+	 * {@link #keys()} and {@link #roots()}.
+	 */
+	public UnionFindSparseCompact( final long[] keys, final long[] parents )
+	{
+		this( keys.length );
+		joinAll( keys, parents );
+	}
+
+	private UnionFindSparseCompact( final UnionFindSparseCompact other )
+	{
+		this.slots = new TLongIntHashMap( Math.max( other.size, 1 ), 0.5f, 0, NO_SLOT );
+		this.slots.putAll( other.slots );
+		this.ids = other.ids.clone();
+		this.parents = other.parents.clone();
+		this.ranks = other.ranks.clone();
+		this.representatives = other.representatives.clone();
+		this.size = other.size;
+		this.nSets = other.nSets;
+	}
+
+	public long findRoot( final long id )
+	{
+		return representatives[ findRootSlot( slot( id ) ) ];
+	}
+
+	public long join( final long id1, final long id2 )
+	{
+		return joinSlots( findRootSlot( slot( id1 ) ), findRootSlot( slot( id2 ) ) );
+	}
+
+	public void joinAll( final long[] ids1, final long[] ids2 )
+	{
+		assert ids1.length == ids2.length;
+		for ( int i = 0; i < ids1.length; ++i )
+			joinSlots( findRootSlot( slot( ids1[ i ] ) ), findRootSlot( slot( ids2[ i ] ) ) );
+	}
+
+	public boolean contains( final long id )
+	{
+		return slots.containsKey( id );
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int setCount()
+	{
+		return nSets;
+	}
+
+	/**
+	 * @return all ids in the order they were added
+	 */
+	public long[] keys()
+	{
+		return Arrays.copyOf( ids, size );
+	}
+
+	/**
+	 * @return roots for all ids, in the same order as {@link #keys()}
+	 */
+	public long[] roots()
+	{
+		final long[] roots = new long[ size ];
+		for ( int slot = 0; slot < size; ++slot )
+			roots[ slot ] = representatives[ findRootSlot( slot ) ];
+		return roots;
+	}
+
+	/**
+	 * @return flattened mapping from id to root
+	 */
+	public TLongLongHashMap toMap()
+	{
+		return new TLongLongHashMap( keys(), roots() );
+	}
+
+	@Override
+	public UnionFindSparseCompact clone()
+	{
+		return new UnionFindSparseCompact( this );
+	}
+
+	private int slot( final long id )
+	{
+		final int existing = slots.putIfAbsent( id, size );
+		if ( existing != NO_SLOT )
+			return existing;
+
+		if ( size == ids.length )
+			grow();
+
+		final int slot = size;
+		ids[ slot ] = id;
+		parents[ slot ] = slot;
+		representatives[ slot ] = id;
+		++size;
+		++nSets;
+		return slot;
+	}
+
+	private int findRootSlot( int slot )
+	{
+		// path halving
+		while ( parents[ slot ] != slot )
+		{
+			final int grandParent = parents[ parents[ slot ] ];
+			parents[ slot ] = grandParent;
+			slot = grandParent;
+		}
+		return slot;
+	}
+
+	private long joinSlots( final int r1, final int r2 )
+	{
+		if ( r1 == r2 )
+			return representatives[ r1 ];
+
+		--nSets;
+
+		final long representative = Math.min( representatives[ r1 ], representatives[ r2 ] );
+		final int rank1 = ranks[ r1 ];
+		final int rank2 = ranks[ r2 ];
+
+		final int root;
+		if ( rank1 < rank2 )
+		{
+			parents[ r1 ] = r2;
+			root = r2;
+		}
+		else
+		{
+			parents[ r2 ] = r1;
+			if ( rank1 == rank2 )
+				ranks[ r1 ] = ( byte ) ( rank1 + 1 );
+			root = r1;
+		}
+		representatives[ root ] = representative;
+		return representative;
+	}
+
+	private void grow()
+	{
+		final int capacity = ids.length < Integer.MAX_VALUE / 2 ? ids.length * 2 : Integer.MAX_VALUE - 8;
+		ids = Arrays.copyOf( ids, capacity );
+		parents = Arrays.copyOf( parents, capacity );
+		ranks = Arrays.copyOf( ranks, capacity );
+		representatives = Arrays.copyOf( representatives, capacity );
+	}
+
+}
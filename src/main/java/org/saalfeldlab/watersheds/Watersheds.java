@@ -4,15 +4,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import org.apache.spark.SparkConf;
@@ -34,34 +35,52 @@ import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
-import org.saalfeldlab.watersheds.WatershedsOn.Relief;
+import org.saalfeldlab.watersheds.benchmark.CompressionBenchmark;
+import org.saalfeldlab.watersheds.io.CachingN5FSReader;
+import org.saalfeldlab.watersheds.io.ChunkCache;
+import org.saalfeldlab.watersheds.io.N5WriterPool;
 import org.saalfeldlab.watersheds.kryo.Registrator;
+import org.saalfeldlab.watersheds.pipeline.BlockLabels;
+import org.saalfeldlab.watersheds.pipeline.BlockPartitioner;
+import org.saalfeldlab.watersheds.pipeline.CountSeeds;
 import org.saalfeldlab.watersheds.pipeline.Distance;
 import org.saalfeldlab.watersheds.pipeline.EmptySeedImage;
 import org.saalfeldlab.watersheds.pipeline.MakeSeeds;
+import org.saalfeldlab.watersheds.pipeline.QueueType;
+import org.saalfeldlab.watersheds.pipeline.ReliefHistogram;
+import org.saalfeldlab.watersheds.pipeline.SeedFloodWrite;
+import org.saalfeldlab.watersheds.pipeline.Seeds;
 import org.saalfeldlab.watersheds.pipeline.Threshold;
-import org.saalfeldlab.watersheds.pipeline.Translate;
 import org.saalfeldlab.watersheds.pipeline.Tuple3Helpers;
+import org.saalfeldlab.watersheds.pipeline.Widen;
 import org.saalfeldlab.watersheds.pipeline.Write;
+import org.saalfeldlab.watersheds.pipeline.WritePartition;
 import org.saalfeldlab.watersheds.pipeline.overlap.MergeOverlappingBlocks;
+import org.saalfeldlab.watersheds.pipeline.overlap.MergeOverlappingBlocks.MergeMode;
+import org.saalfeldlab.watersheds.pipeline.overlap.StoreRelevantHyperslices;
+import org.saalfeldlab.watersheds.pipeline.overlap.UnchangedBlocks;
+import org.saalfeldlab.watersheds.pipeline.overlap.faces.FaceContainer;
+import org.saalfeldlab.watersheds.pipeline.overlap.match.MergeStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
-import net.imglib2.Cursor;
-import net.imglib2.Point;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.localextrema.LocalExtrema;
-import net.imglib2.algorithm.localextrema.LocalExtrema.LocalNeighborhoodCheck;
 import net.imglib2.algorithm.morphology.watershed.HierarchicalPriorityQueueQuantized;
 import net.imglib2.algorithm.morphology.watershed.PriorityQueueFactory;
 import net.imglib2.algorithm.morphology.watershed.PriorityQueueFastUtil;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import scala.Tuple2;
 import scala.Tuple3;
@@ -77,79 +96,253 @@ public class Watersheds
 		AFFINITIES;
 	}
 
-	public static < T > void flood(
+	/**
+	 *
+	 * @param blocks
+	 *            offsets of the blocks in {@code data}, for counting seeds
+	 *            without allocating label blocks
+	 * @param localLabels
+	 *            seed and flood with block-local labels, and widen them to
+	 *            global ids only for writing and merging, instead of seeding
+	 *            with global labels
+	 */
+	public static < L extends IntegerType< L > > void flood(
 			final JavaSparkContext sc,
-			final JavaPairRDD< HashWrapper< long[] >, Tuple2< ArrayImg< UnsignedLongType, ? >, long[] > > data,
-			final Function< Tuple2< ArrayImg< UnsignedLongType, ? >, long[] >, Tuple3< ArrayImg< UnsignedLongType, ? >, long[], Long > > seedGenerator,
-			final Function< Tuple3< ArrayImg< UnsignedLongType, ? >, long[], List< Point > >, Tuple2< ArrayImg< UnsignedLongType, ? >, long[] > > watershed,
+			final JavaRDD< HashWrapper< long[] > > blocks,
+			final JavaPairRDD< HashWrapper< long[] >, Tuple2< ArrayImg< L, ? >, long[] > > data,
+			final MakeSeeds.SeedGenerator< L > seedGenerator,
+			final Function< Tuple3< ArrayImg< L, ? >, long[], Seeds >, Tuple2< ArrayImg< L, ? >, long[] > > watershed,
 			final CellGrid wsGrid,
 			final N5Writer writer,
 			final boolean mergeBlocks,
+			final boolean localLabels,
 			final ReliefParameters p
-			) throws IOException
+			) throws IOException, InterruptedException, ExecutionException
 	{
-		// TODO How to persist this?
-		final JavaPairRDD< HashWrapper< long[] >, Tuple3< ArrayImg< UnsignedLongType, ? >, long[], Long > > seeds = data.mapValues( seedGenerator )
-				.persist( StorageLevel.DISK_ONLY() );;// .persist(
-				// StorageLevel.DISK_ONLY()
-				// );
-				final List< Tuple2< HashWrapper< long[] >, Long > > counts = seeds.mapValues( Tuple3Helpers.getLast() ).collect();
-				final HashMap< HashWrapper< long[] >, Long > offsets = new HashMap<>();
-				long offset = 0;
-				for ( final Tuple2< HashWrapper< long[] >, Long > count : counts )
-				{
-					offsets.put( count._1(), offset );
-					offset += count._2();
-					LOG.debug( "Counting seed labels: {} {} {}", Arrays.toString( count._1().getData() ), count._2(), offset );
-				}
-				LOG.debug( "Got {} seed labels.", offset );
-
+		if ( p.fused )
+		{
+			if ( !mergeBlocks || p.mergeMode != MergeMode.HALO )
+			{
+				floodFused( sc, blocks, data, seedGenerator, watershed, wsGrid, writer, mergeBlocks, localLabels, p );
+				return;
+			}
+			LOG.warn( "Merge mode {} needs full watershed blocks with halo and cannot be fused, falling back to separate stages.", p.mergeMode );
+		}
 
-				final Broadcast< HashMap< HashWrapper< long[] >, Long > > offsetsBC = sc.broadcast( offsets );
+		final JavaPairRDD< HashWrapper< long[] >, Tuple3< ArrayImg< L, ? >, long[], Seeds > > seeds;
+		final JavaPairRDD< HashWrapper< long[] >, Tuple3< ArrayImg< L, ? >, long[], Seeds > > offsetSeeds;
+		final Broadcast< HashMap< HashWrapper< long[] >, Long > > offsetsBC;
+		final BlockLabels blockLabels;
+		if ( p.blockEncodedLabels )
+		{
+			// globally unique ids at generation time, no need to know label
+			// counts of other blocks
+			blockLabels = new BlockLabels( wsGrid, p.watershedHalo );
+			LOG.info( "Encoding block index in upper {} bits of labels.", 64 - blockLabels.localBits() );
+			offsetsBC = null;
+			seeds = null;
+			offsetSeeds = data
+					.mapToPair( t -> new Tuple2<>( t._1(), seedGenerator.call( t._2(), localLabels ? 0 : blockLabels.offset( t._1().getData() ) ) ) );
+		}
+		else
+		{
+			// TODO How to persist this?
+			blockLabels = null;
+			seeds = data.mapValues( seedGenerator ).persist( StorageLevel.DISK_ONLY() );
+			offsetsBC = sc.broadcast( labelOffsets( seeds.mapValues( Tuple3Helpers.getLast() ).mapValues( Seeds::numLabels ).collect() ) );
 
-				final JavaPairRDD< HashWrapper< long[] >, Tuple2< ArrayImg< UnsignedLongType, ? >, long[] > > offsetSeeds = seeds
-						.mapValues( Tuple3Helpers.dropLast() )
-						.mapToPair( new Relabel<>( offsetsBC ) );
+			// block-local labels are offset when writing
+			offsetSeeds = localLabels ? seeds : seeds.mapToPair( new Relabel<>( offsetsBC ) );
+		}
 
-				final JavaPairRDD< HashWrapper< long[] >, Tuple3< ArrayImg< UnsignedLongType, ? >, long[], List< Point > > > offsetSeedsWithList = offsetSeeds
-						.mapValues( t -> {
-							final ArrayImg< UnsignedLongType, ? > labels = t._1();
-							final List< Point > seedPoints = new ArrayList<>();
-							final UnsignedLongType zero = new UnsignedLongType();
-							for ( final Cursor< UnsignedLongType > c = Views.flatIterable( Views.translate( labels, t._2() ) ).cursor(); c.hasNext(); )
-								if ( !c.next().valueEquals( zero ) )
-									seedPoints.add( new Point( c )  );
-							return new Tuple3<>( labels, t._2(), seedPoints );
-						});
-				final JavaPairRDD< HashWrapper< long[] >, Tuple2< ArrayImg< UnsignedLongType, ? >, long[] > > watersheds = offsetSeedsWithList.mapValues( watershed );
+				final JavaPairRDD< HashWrapper< long[] >, Tuple2< ArrayImg< L, ? >, long[] > > watersheds = offsetSeeds.mapValues( watershed );
+				final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > globalWatersheds = watersheds
+						.mapToPair( new Widen< L >( localLabels ? offsetsBC : null, localLabels ? blockLabels : null ) );
 
 				final int[] watershedBlockSize = IntStream.range( 0, wsGrid.numDimensions() ).map( wsGrid::cellDimension ).toArray();
-				writer.createDataset( p.watershedsDataset, wsGrid.getImgDimensions(), watershedBlockSize, DataType.UINT64, CompressionType.GZIP );
+				writer.createDataset( p.watershedsDataset, wsGrid.getImgDimensions(), watershedBlockSize, DataType.UINT64, p.watershedsCompression );
 				watersheds.persist( StorageLevel.DISK_ONLY() );
-				final JavaRDD< Boolean > written = watersheds
-						.mapValues( new Translate<>() )
-						.map( new Write<>( sc, p.n5GroupOutput, p.watershedsDataset, wsGrid ) );
-				final long successCount = written.filter( b -> b ).count();
+				final long successCount = WritePartition.write( globalWatersheds, new WritePartition<>( p.n5GroupOutput, p.watershedsDataset, new Write< UnsignedLongType >( sc, wsGrid ), p.writeThreads, p.writeQueueSize ) );
 				LOG.info( "Succesfully wrote {}/{} blocks.", successCount, watersheds.count() );
-				seeds.unpersist();
+				if ( seeds != null )
+					seeds.unpersist();
 				final N5FSWriter attributesWriter = new N5FSWriter( p.n5GroupOutput );
 				attributesWriter.setAttribute( p.watershedsDataset, "parameters", p );
+				benchmarkCompression( p );
 
 				if ( mergeBlocks )
 				{
 
-					writer.createDataset( p.watershedsMergedDataset, wsGrid.getImgDimensions(), watershedBlockSize, DataType.UINT64, CompressionType.GZIP );
-					final String n5DatasetPatternUpper = p.watershedsDataset + "-upper-%d";
-					final String n5DatasetPatternLower = p.watershedsDataset + "-lower-%d";
-					MergeOverlappingBlocks.mergeOverlap( sc, watersheds.mapValues( new Translate<>() ), p.n5GroupOutput, p.tmpGroup, n5DatasetPatternUpper, n5DatasetPatternLower, p.watershedsMergedDataset, wsGrid );
+					writer.createDataset( p.watershedsMergedDataset, wsGrid.getImgDimensions(), watershedBlockSize, DataType.UINT64, p.mergedCompression );
+					UnchangedBlocks.clear( p.n5GroupOutput, p.watershedsMergedDataset );
+					final String n5FacesDataset = p.watershedsDataset + "-faces";
+					final UnchangedBlocks.Mode unchangedBlocks = unchangedBlocksMode( p );
+					MergeOverlappingBlocks.mergeOverlap( sc, globalWatersheds, p.n5GroupOutput, p.tmpGroup, n5FacesDataset, p.watershedsMergedDataset, wsGrid, p.watershedHalo, p.mergeMode, p.mergeStrategy, p.minimumOverlap, p.maxDriverEdges, p.mergeThreads, unchangedBlocks != UnchangedBlocks.Mode.WRITE );
+					resolveUnchangedBlocks( p, unchangedBlocks );
 					attributesWriter.setAttribute( p.watershedsMergedDataset, "parameters", p );
 				}
 
 	}
 
-	public static class Relabel< T > implements PairFunction<
-	Tuple2< HashWrapper< long[] >, Tuple2< ArrayImg< UnsignedLongType, ? >, T > >, HashWrapper< long[] >,
-	Tuple2< ArrayImg< UnsignedLongType, ? >, T > >
+	/**
+	 * Seed, flood and write each block in a single task (see
+	 * {@link SeedFloodWrite}). Unless labels are block encoded, a first pass
+	 * over {@code blocks} counts seeds on a flat copy of the relief (see
+	 * {@link MakeSeeds.SeedGenerator#count}) without label blocks, seed
+	 * indices or histograms. Seeds are generated in the fused pass instead of
+	 * persisting seed images. Faces for merging are
+	 * extracted in the fused pass, and watershed blocks are read back from
+	 * {@code p.watershedsDataset} when merging.
+	 */
+	public static < L extends IntegerType< L > > void floodFused(
+			final JavaSparkContext sc,
+			final JavaRDD< HashWrapper< long[] > > blocks,
+			final JavaPairRDD< HashWrapper< long[] >, Tuple2< ArrayImg< L, ? >, long[] > > data,
+			final MakeSeeds.SeedGenerator< L > seedGenerator,
+			final Function< Tuple3< ArrayImg< L, ? >, long[], Seeds >, Tuple2< ArrayImg< L, ? >, long[] > > watershed,
+			final CellGrid wsGrid,
+			final N5Writer writer,
+			final boolean mergeBlocks,
+			final boolean localLabels,
+			final ReliefParameters p ) throws IOException, InterruptedException, ExecutionException
+	{
+		final Broadcast< HashMap< HashWrapper< long[] >, Long > > offsetsBC;
+		final BlockLabels blockLabels;
+		if ( p.blockEncodedLabels )
+		{
+			blockLabels = new BlockLabels( wsGrid, p.watershedHalo );
+			LOG.info( "Encoding block index in upper {} bits of labels.", 64 - blockLabels.localBits() );
+			offsetsBC = null;
+		}
+		else
+		{
+			blockLabels = null;
+			// only count seeds on a flat copy of the relief, label blocks are
+			// seeded in the fused pass
+			final long[] max = Arrays.stream( wsGrid.getImgDimensions() ).map( l -> l - 1 ).toArray();
+			final int[] blockSize = new int[ wsGrid.numDimensions() ];
+			wsGrid.cellDimensions( blockSize );
+			offsetsBC = sc.broadcast( labelOffsets( blocks.mapToPair( new CountSeeds<>( seedGenerator, p.watershedHalo, max, blockSize ) ).collect() ) );
+		}
+
+		final int[] watershedBlockSize = IntStream.range( 0, wsGrid.numDimensions() ).map( wsGrid::cellDimension ).toArray();
+		writer.createDataset( p.watershedsDataset, wsGrid.getImgDimensions(), watershedBlockSize, DataType.UINT64, p.watershedsCompression );
+		final String n5FacesDataset = p.watershedsDataset + "-faces";
+		final FaceContainer faces = MergeOverlappingBlocks.faceContainer( p.tmpGroup, n5FacesDataset, wsGrid );
+		final JavaPairRDD< HashWrapper< long[] >, Tuple2< long[], byte[] > > blockFaces = data.mapPartitionsToPair( new SeedFloodWrite<>(
+				seedGenerator,
+				offsetsBC,
+				blockLabels,
+				watershed,
+				localLabels,
+				new WritePartition<>( p.n5GroupOutput, p.watershedsDataset, new Write< UnsignedLongType >( sc, wsGrid ), p.writeThreads, p.writeQueueSize ),
+				mergeBlocks ? new StoreRelevantHyperslices<>( sc.broadcast( wsGrid ), sc.broadcast( new UnsignedLongType( 0 ) ), faces ) : null ) );
+
+		final N5FSWriter attributesWriter = new N5FSWriter( p.n5GroupOutput );
+		if ( !mergeBlocks )
+		{
+			LOG.info( "Wrote {} blocks.", blockFaces.count() );
+			attributesWriter.setAttribute( p.watershedsDataset, "parameters", p );
+			benchmarkCompression( p );
+			return;
+		}
+
+		// only (encoded) faces are persisted, needed for both the face shards
+		// and the list of blocks
+		blockFaces.persist( StorageLevel.MEMORY_AND_DISK_SER() );
+		blockFaces
+				.values()
+				.mapToPair( f -> new Tuple2<>( HashWrapper.longArray( faces.shardPosition( f._1() ) ), f ) )
+				.groupByKey()
+				.foreach( shard -> faces.writeShard( shard._1().getData(), shard._2() ) );
+		LOG.info( "Wrote {} blocks.", blockFaces.count() );
+		attributesWriter.setAttribute( p.watershedsDataset, "parameters", p );
+		benchmarkCompression( p );
+
+		final String group = p.n5GroupOutput;
+		final String dataset = p.watershedsDataset;
+		final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > watersheds = blockFaces
+				.keys()
+				.mapToPair( block -> new Tuple2<>( block, N5Utils.< UnsignedLongType >open( N5WriterPool.reader( group ), dataset ) ) );
+		writer.createDataset( p.watershedsMergedDataset, wsGrid.getImgDimensions(), watershedBlockSize, DataType.UINT64, p.mergedCompression );
+		UnchangedBlocks.clear( p.n5GroupOutput, p.watershedsMergedDataset );
+		final UnchangedBlocks.Mode unchangedBlocks = unchangedBlocksMode( p );
+		MergeOverlappingBlocks.mergeStoredFaces( sc, watersheds, p.n5GroupOutput, p.tmpGroup, n5FacesDataset, p.watershedsMergedDataset, wsGrid, p.mergeMode, p.mergeStrategy, p.minimumOverlap, p.maxDriverEdges, p.mergeThreads, unchangedBlocks != UnchangedBlocks.Mode.WRITE );
+		resolveUnchangedBlocks( p, unchangedBlocks );
+		attributesWriter.setAttribute( p.watershedsMergedDataset, "parameters", p );
+		blockFaces.unpersist();
+	}
+
+	/**
+	 * Hard links need identical block files, fall back to writing all blocks
+	 * if the merged dataset is compressed differently.
+	 */
+	private static UnchangedBlocks.Mode unchangedBlocksMode( final WatershedParametersWithHelp p )
+	{
+		if ( p.unchangedBlocks == UnchangedBlocks.Mode.LINK && p.mergedCompression != p.watershedsCompression )
+		{
+			LOG.warn( "Cannot link unchanged blocks with --merged-compression {} and --watersheds-compression {}, writing all blocks.", p.mergedCompression, p.watershedsCompression );
+			return UnchangedBlocks.Mode.WRITE;
+		}
+		return p.unchangedBlocks;
+	}
+
+	/**
+	 * Point readers of {@code p.watershedsMergedDataset} to
+	 * {@code p.watershedsDataset} for skipped blocks, and hard link them for
+	 * {@link UnchangedBlocks.Mode#LINK}. Block files and attributes of a
+	 * previous run have been removed by {@link UnchangedBlocks#clear} before
+	 * merging, so nothing is left to do for {@link UnchangedBlocks.Mode#WRITE}.
+	 */
+	private static void resolveUnchangedBlocks( final WatershedParametersWithHelp p, final UnchangedBlocks.Mode unchangedBlocks ) throws IOException
+	{
+		if ( unchangedBlocks == UnchangedBlocks.Mode.WRITE )
+			return;
+		final long[][] gridPositions = UnchangedBlocks.read( p.n5GroupOutput, p.watershedsMergedDataset );
+		new N5FSWriter( p.n5GroupOutput ).setAttribute( p.watershedsMergedDataset, UnchangedBlocks.SOURCE_ATTRIBUTE, p.watershedsDataset );
+		if ( unchangedBlocks == UnchangedBlocks.Mode.LINK )
+			UnchangedBlocks.link( p.n5GroupOutput, p.watershedsDataset, p.watershedsMergedDataset, gridPositions );
+		LOG.info( "{} {} unchanged blocks of {}.", unchangedBlocks == UnchangedBlocks.Mode.LINK ? "Linked" : "Skipped", gridPositions.length, p.watershedsMergedDataset );
+	}
+
+	/**
+	 * Log compression ratio and throughput of all codecs on
+	 * {@code p.compressionBenchmarkBlocks} blocks of {@code p.watershedsDataset}
+	 * (see {@link CompressionBenchmark}), if positive.
+	 */
+	private static void benchmarkCompression( final WatershedParametersWithHelp p ) throws IOException
+	{
+		if ( p.compressionBenchmarkBlocks <= 0 )
+			return;
+		LOG.info( "Benchmarking compression on up to {} blocks of {} ({} currently).", p.compressionBenchmarkBlocks, p.watershedsDataset, p.watershedsCompression );
+		for ( final CompressionBenchmark.Result result : CompressionBenchmark.benchmark( p.n5GroupOutput, p.watershedsDataset, p.compressionBenchmarkBlocks, 3 ) )
+			LOG.info( "{}", result );
+	}
+
+	/**
+	 * Offset labels of each block by the number of seeds in all preceding
+	 * blocks.
+	 */
+	public static HashMap< HashWrapper< long[] >, Long > labelOffsets( final List< Tuple2< HashWrapper< long[] >, Long > > counts )
+	{
+		final HashMap< HashWrapper< long[] >, Long > offsets = new HashMap<>();
+		long offset = 0;
+		for ( final Tuple2< HashWrapper< long[] >, Long > count : counts )
+		{
+			offsets.put( count._1(), offset );
+			offset += count._2();
+			LOG.debug( "Counting seed labels: {} {} {}", Arrays.toString( count._1().getData() ), count._2(), offset );
+		}
+		LOG.debug( "Got {} seed labels.", offset );
+		return offsets;
+	}
+
+	/**
+	 * Add the label offset of a block to all of its seed voxels.
+	 */
+	public static class Relabel< L extends IntegerType< L > > implements PairFunction<
+	Tuple2< HashWrapper< long[] >, Tuple3< ArrayImg< L, ? >, long[], Seeds > >, HashWrapper< long[] >,
+	Tuple3< ArrayImg< L, ? >, long[], Seeds > >
 	{
 
 		private final Broadcast< HashMap< HashWrapper< long[] >, Long > > counts;
@@ -161,17 +354,23 @@ public class Watersheds
 		}
 
 		@Override
-		public Tuple2< HashWrapper< long[] >, Tuple2< ArrayImg< UnsignedLongType, ? >, T > > call(
-				final Tuple2< HashWrapper< long[] >, Tuple2< ArrayImg< UnsignedLongType, ? >, T > > t ) throws Exception
+		public Tuple2< HashWrapper< long[] >, Tuple3< ArrayImg< L, ? >, long[], Seeds > > call(
+				final Tuple2< HashWrapper< long[] >, Tuple3< ArrayImg< L, ? >, long[], Seeds > > t ) throws Exception
 		{
 			final long offset = this.counts.getValue().get( t._1() );
-			final ArrayImg< UnsignedLongType, ? > labels = t._2()._1();
-			final UnsignedLongType zero = new UnsignedLongType();
-			zero.setZero();
-			for ( final UnsignedLongType l : Views.iterable( labels ) )
-				if ( !l.valueEquals( zero ) )
-					l.set( l.get() + offset );
-			return new Tuple2<>( t._1(), new Tuple2<>( labels, t._2()._2() ) );
+			final ArrayImg< L, ? > labels = t._2()._1();
+			final Seeds seeds = t._2()._3();
+			final long[] dimensions = Intervals.dimensionsAsLongArray( labels );
+			final long[] position = new long[ dimensions.length ];
+			final RandomAccess< L > access = labels.randomAccess();
+			for ( int i = 0; i < seeds.size(); ++i )
+			{
+				IntervalIndexer.indexToPosition( seeds.index( i ), dimensions, position );
+				access.setPosition( position );
+				final L l = access.get();
+				l.setInteger( l.getIntegerLong() + offset );
+			}
+			return new Tuple2<>( t._1(), t._2() );
 		}
 	}
 
@@ -211,6 +410,21 @@ public class Watersheds
 		@Option( name = "--merge-blocks", aliases = { "-B" }, required = false, usage = "Merge watershed blocks." )
 		public Boolean mergeBlocks = false;
 
+		@Option( name = "--merge-mode", required = false, usage = "Strategy for merging blocks: HIERARCHICAL (one union find per level of doubling superblocks) GLOBAL (one connected components solve over all equivalences) or HALO (like GLOBAL, but matching the full halo overlap of neighboring blocks exchanged through a shuffle, without hyperslices in TMP_GROUP). Defaults to HIERARCHICAL." )
+		public MergeMode mergeMode = MergeMode.HIERARCHICAL;
+
+		@Option( name = "--merge-strategy", required = false, usage = "How to find equivalent labels in overlapping faces of neighboring blocks: ALL (all overlapping labels), UNIQUE (labels that only overlap with each other), BIGGEST_OVERLAP (labels that are each other's unique biggest overlap) or MINIMUM_OVERLAP (labels that overlap in more than --minimum-overlap voxels). Defaults to BIGGEST_OVERLAP." )
+		public MergeStrategy mergeStrategy = MergeStrategy.BIGGEST_OVERLAP;
+
+		@Option( name = "--minimum-overlap", required = false, usage = "Overlaps must exceed this number of voxels with --merge-strategy MINIMUM_OVERLAP (defaults to 0)." )
+		public Long minimumOverlap = 0L;
+
+		@Option( name = "--max-driver-edges", required = false, usage = "Solve connected components on the driver if there are at most this many equivalence edges across blocks, distributed otherwise. Each edge takes 16 bytes on the driver and the solved mapping, broadcast to all executors, up to 32 bytes. Only used with --merge-mode GLOBAL or HALO. Defaults to 5000000." )
+		public Long maxDriverEdges = 5_000_000L;
+
+		@Option( name = "--merge-threads", required = false, usage = "Number of threads per task for combining union finds when merging blocks, and for the driver side solve with --merge-mode GLOBAL (defaults to 1). Should not exceed spark.task.cpus." )
+		public Integer mergeThreads = 1;
+
 		@Option( name = "--minimum", aliases = { "-m" }, required = false, usage = "Minimum value in data (defaults to 0)." )
 		public Double minimum = 0.0;
 
@@ -220,6 +434,36 @@ public class Watersheds
 		@Option( name = "--queue-bins", required = false, usage = "Number of bins for hierarchical priority queue (defaults to 255). Set to value smaller than one for a non-quantized queue." )
 		public Integer queueBins = 255;
 
+		@Option( name = "--block-encoded-labels", required = false, usage = "Make labels globally unique by encoding the block index in the upper bits of each label, instead of offsetting labels by the number of seeds in all preceding blocks. Avoids collecting seed counts on the driver and a relabeling pass, but label ids are not consecutive." )
+		public Boolean blockEncodedLabels = false;
+
+		@Option( name = "--fused", required = false, usage = "Generate seeds, flood and write each block (and extract its faces for merging) in a single task instead of persisting seed and watershed blocks between stages. Unless --block-encoded-labels is set, a first pass counts the seeds of each block on a copy of the relief, without allocating label blocks. Not supported with --merge-mode HALO." )
+		public Boolean fused = false;
+
+		@Option( name = "--blocks-per-partition", required = false, usage = "Group this many spatially adjacent watershed blocks (in Z-order, aligned to the chunk grid of the input dataset) into one partition. Uses default partitioning if not positive (defaults to 0)." )
+		public Integer blocksPerPartition = 0;
+
+		@Option( name = "--chunk-cache-size", required = false, usage = "Budget (in MB) of the per executor cache of decompressed relief chunks, shared by all tasks. Caching is disabled if not positive (defaults to 0). Account for the cache in the executor memory." )
+		public Long chunkCacheSize = 0L;
+
+		@Option( name = "--watersheds-compression", required = false, usage = "Compression of --watersheds-dataset: RAW, GZIP, BZIP2, LZ4 or XZ (defaults to GZIP)." )
+		public CompressionType watershedsCompression = CompressionType.GZIP;
+
+		@Option( name = "--merged-compression", required = false, usage = "Compression of --watersheds-merged-dataset: RAW, GZIP, BZIP2, LZ4 or XZ (defaults to GZIP)." )
+		public CompressionType mergedCompression = CompressionType.GZIP;
+
+		@Option( name = "--compression-benchmark-blocks", required = false, usage = "After writing --watersheds-dataset, sample this many of its blocks and log compression ratio and encode/decode throughput for each compression. No benchmark if not positive (defaults to 0)." )
+		public Integer compressionBenchmarkBlocks = 0;
+
+		@Option( name = "--unchanged-blocks", required = false, usage = "Blocks of --watersheds-merged-dataset whose labels are all their own roots are identical to --watersheds-dataset: WRITE them anyway, SKIP them and list their grid positions in the unchangedBlocks attribute (readers fall back to the dataset in the unchangedBlocksSource attribute), or LINK their block files from --watersheds-dataset (requires equal compression). Defaults to WRITE." )
+		public UnchangedBlocks.Mode unchangedBlocks = UnchangedBlocks.Mode.WRITE;
+
+		@Option( name = "--write-threads", required = false, usage = "Compress and write watershed blocks on this many background threads per executor, while tasks go on flooding the next block. Blocks are written on the task thread if not positive (defaults to 0)." )
+		public Integer writeThreads = 0;
+
+		@Option( name = "--write-queue-size", required = false, usage = "Maximum number of watershed blocks per executor that are queued or being written with --write-threads. Tasks wait for a free slot when the queue is full (defaults to 8)." )
+		public Integer writeQueueSize = 8;
+
 		public String version;
 		{
 			final Properties properties = new Properties();
@@ -245,6 +489,30 @@ public class Watersheds
 
 		@Option( name = "--invert", aliases = { "-i" }, required = false, usage = "Multiply relief values by minus one." )
 		public Boolean invert = false;
+
+		@Option( name = "--array-flood", required = false, usage = "Experimental: flood on flat copies of relief and labels with precomputed neighbor offsets and a binary heap that floods ties in insertion order, instead of imglib2 views with the queue selected by --queue-bins. Labels are not verified to match the imglib2 path (see FloodEquivalence), and can differ where ties are flooded. Ignores --queue-bins, --minimum and --maximum. Same as --queue-type HEAP." )
+		public Boolean arrayFlood = false;
+
+		@Option( name = "--queue-type", required = false, usage = "Priority queue for flooding: HIERARCHICAL (quantized into --queue-bins bins between --minimum and --maximum), FASTUTIL (exact heap), HEAP (experimental, binary heap with ties in insertion order, array based flooding) or RADIX (experimental, radix heap, same labels as HEAP, array based flooding). Labels of HEAP and RADIX are not verified to match the imglib2 path. Defaults to HIERARCHICAL if --queue-bins is positive, FASTUTIL otherwise." )
+		public QueueType queueType = null;
+
+		@Option( name = "--auto-queue", required = false, usage = "Fit the hierarchical priority queue to each block, from a histogram of the relief block collected while seeding: RANGE (--queue-bins bins between minimum and maximum of the block) or EQUALIZE (--queue-bins bins with equal occupancy). Replaces --minimum and --maximum for flooding. Only with --queue-type HIERARCHICAL." )
+		public ReliefHistogram.Mode autoQueue = null;
+
+		@Option( name = "--local-labels", required = false, usage = "Store block-local labels in 16 or 32 bits (depending on block size including halo) while seeding, flooding and persisting blocks, and add label offsets only when writing and merging. Halves memory and spill volume of label blocks." )
+		public Boolean localLabels = false;
+
+		@Option( name = "--flood-threads", required = false, usage = "Split each block into sub-blocks that are flooded in parallel on this many threads per task, with a sequential reconciliation of voxels not reached within the sub-block halo (defaults to 1). Requires --queue-type HEAP or RADIX. Set spark.task.cpus to the same value." )
+		public Integer floodThreads = 1;
+
+		@Option( name = "--flood-sub-block-size", required = false, usage = "Sub-block size for --flood-threads in the format sx,sy,sz. Defaults to half the watershed block size (including halo) in each dimension." )
+		public String floodSubBlockSize = null;
+
+		@Option( name = "--flood-sub-block-halo", required = false, usage = "Sub-blocks are flooded over the sub-block expanded by this many voxels (within the block) and keep the labels of their own voxels (defaults to 16). Larger values agree better with flooding the whole block at once." )
+		public Integer floodSubBlockHalo = 16;
+
+		@Option( name = "--seed-plateaus", required = false, usage = "Without --threshold, also seed at plateaus (connected voxels of equal value) that are local extrema as a whole, one label per plateau. Only strict local extrema are seeds otherwise." )
+		public Boolean seedPlateaus = false;
 	}
 
 	public static boolean parseArgs( final Collection< String > args, final WatershedParametersWithHelp p ) {
@@ -271,7 +539,7 @@ public class Watersheds
 		return !p.printHelp;
 	}
 
-	public static void main( final String[] args ) throws IOException, URISyntaxException
+	public static void main( final String[] args ) throws IOException, URISyntaxException, InterruptedException, ExecutionException
 	{
 
 		final SparkConf conf = new SparkConf()
@@ -309,7 +577,7 @@ public class Watersheds
 		}
 	}
 
-	public static < T extends RealType< T > & NativeType< T > > void watershedsOnRelief( final JavaSparkContext sc, final ReliefParameters p ) throws IOException
+	public static < T extends RealType< T > & NativeType< T > > void watershedsOnRelief( final JavaSparkContext sc, final ReliefParameters p ) throws IOException, InterruptedException, ExecutionException
 	{
 		final N5FSReader globalReader = new N5FSReader( p.n5Group );
 		final DatasetAttributes globalAttrs = globalReader.getDatasetAttributes( p.n5dataset );
@@ -322,36 +590,152 @@ public class Watersheds
 		final RandomAccessibleInterval< T > sample = N5Utils.open( globalReader, p.n5dataset );
 		final T extension = net.imglib2.util.Util.getTypeFromInterval( sample ).createVariable();
 		extension.setReal( p.invert ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY );
-		final Broadcast< T > extensionBC = sc.broadcast( extension );
 
-		final JavaPairRDD< HashWrapper< long[] >, Tuple2< ArrayImg< UnsignedLongType, ? >, long[] > > emptySeedImage = sc
-				.parallelize( offsets )
-				.mapToPair( new EmptySeedImage<>( halo, max, watershedBlockSize, sc.broadcast( new UnsignedLongType() ) ) );
+		final JavaRDD< HashWrapper< long[] > > blocks;
+		if ( p.blocksPerPartition > 0 )
+		{
+			final BlockPartitioner partitioner = new BlockPartitioner( offsets, watershedBlockSize, globalAttrs.getBlockSize(), p.blocksPerPartition );
+			LOG.info( "Distributing {} blocks over {} partitions.", offsets.size(), partitioner.numPartitions() );
+			blocks = sc
+					.parallelizePairs( offsets.stream().map( o -> new Tuple2<>( o, true ) ).collect( Collectors.toList() ) )
+					.partitionBy( partitioner )
+					.keys();
+		}
+		else
+			blocks = sc.parallelize( offsets );
 
-		final T extremumThreshold = extension.copy();
-		extremumThreshold.setReal( p.invert ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY );
-		final Broadcast< LocalNeighborhoodCheck< Point, T > > extremumCheck = sc.broadcast( p.invert ? new LocalExtrema.MaximumCheck<>( extremumThreshold ) : new LocalExtrema.MinimumCheck<>( extremumThreshold ) );
-		final Supplier< RandomAccessible< T > > reliefSupplier = new ReliefSupplier<>( p.n5Group, p.n5dataset, extension.copy() );
+		if ( p.localLabels )
+		{
+			long blockVoxels = 1;
+			for ( final int size : watershedBlockSize )
+				blockVoxels *= size + 2 * halo;
+			// one label per voxel at most, zero is reserved
+			if ( blockVoxels < 1L << 16 )
+			{
+				LOG.info( "Storing block-local labels in 16 bits." );
+				floodRelief( sc, blocks, new UnsignedShortType(), true, dims, max, watershedBlockSize, extension, p );
+				return;
+			}
+			if ( blockVoxels < 1L << 32 )
+			{
+				LOG.info( "Storing block-local labels in 32 bits." );
+				floodRelief( sc, blocks, new UnsignedIntType(), true, dims, max, watershedBlockSize, extension, p );
+				return;
+			}
+			LOG.warn( "Blocks with {} voxels (including halo) may have more labels than fit into 32 bits, storing 64 bit labels.", blockVoxels );
+		}
+		floodRelief( sc, blocks, new UnsignedLongType(), false, dims, max, watershedBlockSize, extension, p );
+	}
+
+	/**
+	 * Seed and flood all {@code blocks} with label type {@code L}. With
+	 * {@code localLabels}, label blocks hold block-local labels that are
+	 * widened to global {@link UnsignedLongType} ids when writing and merging
+	 * (see {@link Widen}).
+	 */
+	private static < T extends RealType< T > & NativeType< T >, L extends IntegerType< L > & NativeType< L > > void floodRelief(
+			final JavaSparkContext sc,
+			final JavaRDD< HashWrapper< long[] > > blocks,
+			final L labelType,
+			final boolean localLabels,
+			final long[] dims,
+			final long[] max,
+			final int[] watershedBlockSize,
+			final T extension,
+			final ReliefParameters p ) throws IOException, InterruptedException, ExecutionException
+	{
+		final int halo = p.watershedHalo;
+		final Broadcast< T > extensionBC = sc.broadcast( extension );
+		final JavaPairRDD< HashWrapper< long[] >, Tuple2< ArrayImg< L, ? >, long[] > > emptySeedImage = blocks
+				.mapToPair( new EmptySeedImage<>( halo, max, watershedBlockSize, sc.broadcast( labelType ) ) );
+
+		final Supplier< RandomAccessible< T > > reliefSupplier = new ReliefSupplier<>( p.n5Group, p.n5dataset, extension.copy(), p.chunkCacheSize * 1024 * 1024 );
 		final Broadcast< Supplier< RandomAccessible< T > > > reliefSupplierBC = sc.broadcast( reliefSupplier );
-		final Function< Tuple2< ArrayImg< UnsignedLongType, ? >, long[] >, Tuple3< ArrayImg< UnsignedLongType, ? >, long[], Long > > seedGenerator =
-				p.threshold == null || Double.isNaN( p.threshold ) ? MakeSeeds.localExtrema( extremumCheck, reliefSupplierBC ) : MakeSeeds.localExtremaAndThreshold(
-						extremumCheck,
+		final QueueType queueType = Optional.ofNullable( p.queueType ).orElse( p.arrayFlood ? QueueType.HEAP : p.queueBins > 0 ? QueueType.HIERARCHICAL : QueueType.FASTUTIL );
+		if ( p.autoQueue != null && queueType != QueueType.HIERARCHICAL )
+			LOG.warn( "--auto-queue only applies to queue type {}, ignoring it for queue type {}.", QueueType.HIERARCHICAL, queueType );
+		final ReliefHistogram.Mode autoQueue = queueType == QueueType.HIERARCHICAL ? p.autoQueue : null;
+		if ( p.floodThreads > 1 && !queueType.isArrayBased() )
+			LOG.warn( "--flood-threads requires array based flooding (queue type {} or {}), flooding on a single thread with queue type {}.", QueueType.HEAP, QueueType.RADIX, queueType );
+		final int histogramBins = autoQueue == null ? 0 : ReliefHistogram.DEFAULT_BINS;
+
+		final MakeSeeds.SeedGenerator< L > seedGenerator =
+				p.threshold == null || Double.isNaN( p.threshold ) ? MakeSeeds.< T, L >flatLocalExtrema( p.invert, p.seedPlateaus, histogramBins, reliefSupplierBC ) : MakeSeeds.< T, L >localExtremaAndThreshold(
+						p.invert,
 						sc.broadcast( Threshold.threshold( p.threshold, !p.invert ) ),
+						histogramBins,
 						reliefSupplierBC );
 
 				final double queueMin = p.invert ? -p.maximum : p.minimum;
 				final double queueMax = p.invert ? -p.minimum : p.maximum;
-				final PriorityQueueFactory factory = p.queueBins > 0 ? HierarchicalPriorityQueueQuantized.factory( p.queueBins, queueMin, queueMax ) : PriorityQueueFastUtil.FACTORY;
+				final PriorityQueueFactory factory = queueType == QueueType.HIERARCHICAL ? HierarchicalPriorityQueueQuantized.factory( p.queueBins, queueMin, queueMax ) : PriorityQueueFastUtil.FACTORY;
+				LOG.info( "Flooding with queue type {}{}.", queueType, autoQueue == null ? "" : " fitted per block (" + autoQueue + ")" );
 
-				final Relief< T, UnsignedLongType, ArrayImg< UnsignedLongType, ? >, Point > watershed = WatershedsOn.relief(
-						sc.broadcast( Distance.get( p.invert ) ),
-						sc.broadcast( factory ),
-						extensionBC,
-						sc.broadcast( new UnsignedLongType() ),
-						reliefSupplierBC );
+				final Function< Tuple3< ArrayImg< L, ? >, long[], Seeds >, Tuple2< ArrayImg< L, ? >, long[] > > watershed;
+				if ( queueType.isArrayBased() )
+				{
+					final int[] subBlockSize = floodSubBlockSize( p, watershedBlockSize );
+					if ( p.floodThreads > 1 )
+					{
+						LOG.info( "Flooding sub-blocks of size {} with halo {} on {} threads per block.", Arrays.toString( subBlockSize ), p.floodSubBlockHalo, p.floodThreads );
+						final int taskCpus = sc.getConf().getInt( "spark.task.cpus", 1 );
+						if ( taskCpus != p.floodThreads )
+							LOG.warn( "--flood-threads is {} but spark.task.cpus is {}, set --conf spark.task.cpus={} to match.", p.floodThreads, taskCpus, p.floodThreads );
+					}
+					watershed = WatershedsOn.< T, L >arrayRelief( p.invert, queueType, p.floodThreads, subBlockSize, p.floodSubBlockHalo, reliefSupplierBC );
+				}
+				else
+					watershed = WatershedsOn.< T, L, ArrayImg< L, ? > >relief(
+							sc.broadcast( Distance.get( p.invert ) ),
+							sc.broadcast( factory ),
+							autoQueue,
+							p.queueBins,
+							extensionBC,
+							sc.broadcast( labelType.createVariable() ),
+							reliefSupplierBC );
 				final N5FSWriter writer = new N5FSWriter( p.n5GroupOutput );
 				final CellGrid wsGrid = new CellGrid( dims, watershedBlockSize );
-				flood( sc, emptySeedImage, seedGenerator, watershed, wsGrid, writer, p.watershedHalo > 0 && p.mergeBlocks, p );
+				flood( sc, blocks, emptySeedImage, seedGenerator, watershed, wsGrid, writer, p.watershedHalo > 0 && p.mergeBlocks, localLabels, p );
+	}
+
+	/**
+	 * Parse {@code --flood-sub-block-size} on the driver, so that a malformed
+	 * size fails before any block is flooded.
+	 *
+	 * @return one positive size per dimension of {@code watershedBlockSize},
+	 *         half the watershed block size (including halo) if not specified
+	 * @throws IllegalArgumentException
+	 *             if the option does not hold one positive integer per
+	 *             dimension
+	 */
+	private static int[] floodSubBlockSize( final ReliefParameters p, final int[] watershedBlockSize )
+	{
+		final int halo = p.watershedHalo;
+		if ( p.floodSubBlockSize == null )
+			return Arrays.stream( watershedBlockSize ).map( size -> ( size + 2 * halo + 1 ) / 2 ).toArray();
+
+		final String usage = String.format(
+				"--flood-sub-block-size requires %d positive integers in the format sx,sy,sz but was %s.",
+				watershedBlockSize.length,
+				p.floodSubBlockSize );
+		final String[] sizes = p.floodSubBlockSize.split( "," );
+		if ( sizes.length != watershedBlockSize.length )
+			throw new IllegalArgumentException( usage );
+		final int[] subBlockSize = new int[ sizes.length ];
+		for ( int d = 0; d < sizes.length; ++d )
+		{
+			try
+			{
+				subBlockSize[ d ] = Integer.parseInt( sizes[ d ].trim() );
+			}
+			catch ( final NumberFormatException e )
+			{
+				throw new IllegalArgumentException( usage, e );
+			}
+			if ( subBlockSize[ d ] <= 0 )
+				throw new IllegalArgumentException( usage );
+		}
+		return subBlockSize;
 	}
 
 	public static class ReliefSupplier< T extends NativeType< T > > implements Supplier< RandomAccessible< T > >
@@ -363,12 +747,26 @@ public class Watersheds
 
 		private final T extension;
 
+		private final long cacheBytes;
+
 		public ReliefSupplier( final String group, final String dataset, final T extension )
+		{
+			this( group, dataset, extension, 0 );
+		}
+
+		/**
+		 *
+		 * @param cacheBytes
+		 *            budget of the executor wide {@link ChunkCache}, no caching
+		 *            if not positive
+		 */
+		public ReliefSupplier( final String group, final String dataset, final T extension, final long cacheBytes )
 		{
 			super();
 			this.group = group;
 			this.dataset = dataset;
 			this.extension = extension;
+			this.cacheBytes = cacheBytes;
 		}
 
 		@Override
@@ -376,6 +774,12 @@ public class Watersheds
 		{
 			try
 			{
+				if ( cacheBytes > 0 )
+				{
+					final ChunkCache cache = ChunkCache.getInstance( cacheBytes );
+					LOG.debug( "{}", cache );
+					return Views.extendValue( N5Utils.open( new CachingN5FSReader( group, cache ), dataset ), extension );
+				}
 				return Views.extendValue( N5Utils.open( new N5FSReader( group ), dataset ), extension );
 			}
 			catch ( final IOException e )
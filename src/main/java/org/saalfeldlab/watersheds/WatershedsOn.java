@@ -9,6 +9,12 @@ import java.util.function.ToDoubleBiFunction;
 
 import org.apache.spark.api.java.function.Function;
 import org.apache.spark.broadcast.Broadcast;
+import org.saalfeldlab.watersheds.pipeline.Distance;
+import org.saalfeldlab.watersheds.pipeline.FlatFlood;
+import org.saalfeldlab.watersheds.pipeline.FlatRelief;
+import org.saalfeldlab.watersheds.pipeline.QueueType;
+import org.saalfeldlab.watersheds.pipeline.ReliefHistogram;
+import org.saalfeldlab.watersheds.pipeline.Seeds;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,9 +23,11 @@ import net.imglib2.Localizable;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.morphology.watershed.AffinityWatersheds;
+import net.imglib2.algorithm.morphology.watershed.HierarchicalPriorityQueueQuantized;
 import net.imglib2.algorithm.morphology.watershed.PriorityQueueFactory;
 import net.imglib2.algorithm.morphology.watershed.Watersheds;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
@@ -35,14 +43,57 @@ public class WatershedsOn
 
 	private static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
 
-	public static < T extends Type< T >, L extends IntegerType< L >, F extends RandomAccessibleInterval< L >, P extends Localizable > Relief< T, L, F, P > relief(
+	public static < T extends Type< T >, L extends IntegerType< L >, F extends RandomAccessibleInterval< L > > Relief< T, L, F > relief(
 			final Broadcast< ToDoubleBiFunction< T, T > > dist,
 			final Broadcast< PriorityQueueFactory > factory,
 			final Broadcast< T > extension,
 			final Broadcast< L > labelsExtension,
 			final Broadcast< Supplier< RandomAccessible< T > > > relief )
 	{
-		return new Relief< T, L, F, P >( dist, factory, extension, labelsExtension, relief );
+		return new Relief< T, L, F >( dist, factory, extension, labelsExtension, relief );
+	}
+
+	/**
+	 *
+	 * @param autoQueue
+	 *            fit a {@link HierarchicalPriorityQueueQuantized} with
+	 *            {@code queueBins} bins to the {@link ReliefHistogram} of each
+	 *            block instead of using {@code factory}, if not {@code null}
+	 *            and the seeds carry a histogram
+	 */
+	public static < T extends Type< T >, L extends IntegerType< L >, F extends RandomAccessibleInterval< L > > Relief< T, L, F > relief(
+			final Broadcast< ToDoubleBiFunction< T, T > > dist,
+			final Broadcast< PriorityQueueFactory > factory,
+			final ReliefHistogram.Mode autoQueue,
+			final int queueBins,
+			final Broadcast< T > extension,
+			final Broadcast< L > labelsExtension,
+			final Broadcast< Supplier< RandomAccessible< T > > > relief )
+	{
+		return new Relief< T, L, F >( dist, factory, autoQueue, queueBins, extension, labelsExtension, relief );
+	}
+
+	public static < T extends RealType< T >, L extends IntegerType< L > > ArrayRelief< T, L > arrayRelief( final boolean invert, final QueueType queueType, final Broadcast< Supplier< RandomAccessible< T > > > relief )
+	{
+		return new ArrayRelief<>( invert, queueType, relief );
+	}
+
+	/**
+	 *
+	 * @param threads
+	 *            flood sub-blocks of {@code subBlockSize} with
+	 *            {@code subBlockHalo} on this many threads per block if
+	 *            greater than one, see {@link FlatFlood#floodParallel}
+	 */
+	public static < T extends RealType< T >, L extends IntegerType< L > > ArrayRelief< T, L > arrayRelief(
+			final boolean invert,
+			final QueueType queueType,
+			final int threads,
+			final int[] subBlockSize,
+			final int subBlockHalo,
+			final Broadcast< Supplier< RandomAccessible< T > > > relief )
+	{
+		return new ArrayRelief<>( invert, queueType, threads, subBlockSize, subBlockHalo, relief );
 	}
 
 	public static < T extends RealType< T >, C extends Composite< T >, L extends IntegerType< L >, P extends Localizable > Affinities< T, C, L, P > affinities(
@@ -53,14 +104,23 @@ public class WatershedsOn
 		return new Affinities<>( factory, extension, labelsExtension );
 	}
 
-	public static class Relief< T extends Type< T >, L extends IntegerType< L >, F extends RandomAccessibleInterval< L >, P extends Localizable > implements
-	Function< Tuple3< F, long[], List< P > >, Tuple2< F, long[] > >
+	/**
+	 * Flood a label block from seeds given as flat indices into the block.
+	 * With {@code autoQueue}, the quantized queue is fitted to the
+	 * {@link ReliefHistogram} attached to the seeds of each block.
+	 */
+	public static class Relief< T extends Type< T >, L extends IntegerType< L >, F extends RandomAccessibleInterval< L > > implements
+	Function< Tuple3< F, long[], Seeds >, Tuple2< F, long[] > >
 	{
 
 		private final Broadcast< ToDoubleBiFunction< T, T > > dist;
 
 		private final Broadcast< PriorityQueueFactory > factory;
 
+		private final ReliefHistogram.Mode autoQueue;
+
+		private final int queueBins;
+
 		private final Broadcast< T > extension;
 
 		private final Broadcast< L > labelsExtension;
@@ -73,28 +133,141 @@ public class WatershedsOn
 				final Broadcast< T > extension,
 				final Broadcast< L > labelsExtension,
 				final Broadcast< Supplier< RandomAccessible< T > > > relief )
+		{
+			this( dist, factory, null, 0, extension, labelsExtension, relief );
+		}
+
+		public Relief(
+				final Broadcast< ToDoubleBiFunction< T, T > > dist,
+				final Broadcast< PriorityQueueFactory > factory,
+				final ReliefHistogram.Mode autoQueue,
+				final int queueBins,
+				final Broadcast< T > extension,
+				final Broadcast< L > labelsExtension,
+				final Broadcast< Supplier< RandomAccessible< T > > > relief )
 		{
 			super();
 			this.dist = dist;
 			this.factory = factory;
+			this.autoQueue = autoQueue;
+			this.queueBins = queueBins;
 			this.extension = extension;
 			this.labelsExtension = labelsExtension;
 			this.relief = relief;
 		}
 
 		@Override
-		public Tuple2< F, long[] > call( final Tuple3< F, long[], List< P > > dataAndOffsetAndSeeds ) throws Exception
+		public Tuple2< F, long[] > call( final Tuple3< F, long[], Seeds > dataAndOffsetAndSeeds ) throws Exception
 		{
 			final F store = dataAndOffsetAndSeeds._1();
 			final long[] offset = dataAndOffsetAndSeeds._2();
-			final List< P > seeds = dataAndOffsetAndSeeds._3();
+			final ReliefHistogram histogram = dataAndOffsetAndSeeds._3().histogram();
+			final List< Localizable > seeds = dataAndOffsetAndSeeds._3().asLocalizables( Intervals.dimensionsAsLongArray( store ), offset );
 			final IntervalView< L > labels = Views.translate( Views.zeroMin( store ), offset );
 			LOG.debug( "Calculating watersheds for interval {}", new IntervalsToString( labels ) );
 			final RandomAccessible< T > relief = this.relief.getValue().get();
-			processRelief( relief, labels, seeds, dist.getValue(), factory.getValue(), extension.getValue(), labelsExtension.getValue() );
+			if ( autoQueue == null || histogram == null )
+				processRelief( relief, labels, seeds, dist.getValue(), factory.getValue(), extension.getValue(), labelsExtension.getValue() );
+			else
+			{
+				final int bins = ( int ) Math.max( Math.min( queueBins, histogram.count() ), 1 );
+				logOccupancy( labels, histogram, bins );
+				if ( autoQueue == ReliefHistogram.Mode.EQUALIZE )
+					processRelief( relief, labels, seeds, Distance.equalized( dist.getValue(), histogram ), HierarchicalPriorityQueueQuantized.factory( bins, 0.0, 1.0 ), extension.getValue(), labelsExtension.getValue() );
+				else
+				{
+					final double max = histogram.max() > histogram.min() ? histogram.max() : histogram.min() + 1.0;
+					processRelief( relief, labels, seeds, dist.getValue(), HierarchicalPriorityQueueQuantized.factory( bins, histogram.min(), max ), extension.getValue(), labelsExtension.getValue() );
+				}
+			}
 
 			return new Tuple2<>( store, offset );
 		}
+
+		private void logOccupancy( final Interval labels, final ReliefHistogram histogram, final int bins )
+		{
+			if ( !LOG.isDebugEnabled() )
+				return;
+			final long[] occupancy = histogram.queueOccupancy( autoQueue, bins );
+			int nonEmpty = 0;
+			long maxOccupancy = 0;
+			for ( final long o : occupancy )
+			{
+				nonEmpty += o > 0 ? 1 : 0;
+				maxOccupancy = Math.max( maxOccupancy, o );
+			}
+			LOG.debug(
+					"Queue for interval {}: {} mode, {} bins over priorities [{}, {}], {} bins occupied, fullest bin holds {} of {} voxels ({} expected with equal occupancy).",
+					new IntervalsToString( labels ),
+					autoQueue,
+					bins,
+					histogram.min(),
+					histogram.max(),
+					nonEmpty,
+					maxOccupancy,
+					histogram.count(),
+					histogram.count() / bins );
+		}
+	}
+
+	/**
+	 * Flood label blocks from seeds on a
+	 * {@link FlatRelief} copy of the relief with {@link FlatFlood}, instead of
+	 * extended views of relief and labels. With more than one thread, blocks
+	 * are split into sub-blocks that are flooded in parallel.
+	 */
+	public static class ArrayRelief< T extends RealType< T >, L extends IntegerType< L > > implements
+	Function< Tuple3< ArrayImg< L, ? >, long[], Seeds >, Tuple2< ArrayImg< L, ? >, long[] > >
+	{
+
+		private final boolean invert;
+
+		private final QueueType queueType;
+
+		private final int threads;
+
+		private final int[] subBlockSize;
+
+		private final int subBlockHalo;
+
+		private final Broadcast< Supplier< RandomAccessible< T > > > relief;
+
+		public ArrayRelief( final boolean invert, final QueueType queueType, final Broadcast< Supplier< RandomAccessible< T > > > relief )
+		{
+			this( invert, queueType, 1, null, 0, relief );
+		}
+
+		public ArrayRelief(
+				final boolean invert,
+				final QueueType queueType,
+				final int threads,
+				final int[] subBlockSize,
+				final int subBlockHalo,
+				final Broadcast< Supplier< RandomAccessible< T > > > relief )
+		{
+			super();
+			this.invert = invert;
+			this.queueType = queueType;
+			this.threads = threads;
+			this.subBlockSize = subBlockSize;
+			this.subBlockHalo = subBlockHalo;
+			this.relief = relief;
+		}
+
+		@Override
+		public Tuple2< ArrayImg< L, ? >, long[] > call( final Tuple3< ArrayImg< L, ? >, long[], Seeds > dataAndOffsetAndSeeds ) throws Exception
+		{
+			final ArrayImg< L, ? > store = dataAndOffsetAndSeeds._1();
+			final long[] offset = dataAndOffsetAndSeeds._2();
+			final IntervalView< L > labels = Views.translate( store, offset );
+			LOG.debug( "Calculating watersheds for interval {}", new IntervalsToString( labels ) );
+			final FlatRelief flatRelief = FlatRelief.copy( relief.getValue().get(), labels );
+			if ( threads > 1 )
+				FlatFlood.floodParallel( flatRelief, store, invert, queueType, subBlockSize, subBlockHalo, threads );
+			else
+				FlatFlood.flood( flatRelief, store, dataAndOffsetAndSeeds._3(), invert, queueType );
+			return new Tuple2<>( store, offset );
+		}
 	}
 
 	private static class Affinities< T extends RealType< T >, C extends Composite< T >, L extends IntegerType< L >, P extends Localizable >
@@ -0,0 +1,185 @@
+package org.saalfeldlab.watersheds.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.CompressionType;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.saalfeldlab.watersheds.io.CachingN5FSReader;
+
+/**
+ * Compression ratio and encode/decode throughput of each
+ * {@link CompressionType} on up to {@code numBlocks} blocks sampled from an
+ * existing N5 dataset, e.g. finished supervoxel blocks, to choose
+ * {@code --watersheds-compression} and {@code --merged-compression} based on
+ * data. Sampled blocks are written into and read back from a temporary N5
+ * group, so throughput includes (page cached) file I/O. Throughput is
+ * relative to uncompressed size, the first of {@code iterations + 1} passes is
+ * warm up. Arguments: {@code group dataset [numBlocks [iterations]]}
+ * (defaults {@code 16 3}).
+ */
+public class CompressionBenchmark
+{
+
+	public static class Result
+	{
+
+		public final CompressionType compression;
+
+		public final long uncompressedBytes;
+
+		public final long compressedBytes;
+
+		public final double encodeSeconds;
+
+		public final double decodeSeconds;
+
+		public Result( final CompressionType compression, final long uncompressedBytes, final long compressedBytes, final double encodeSeconds, final double decodeSeconds )
+		{
+			super();
+			this.compression = compression;
+			this.uncompressedBytes = uncompressedBytes;
+			this.compressedBytes = compressedBytes;
+			this.encodeSeconds = encodeSeconds;
+			this.decodeSeconds = decodeSeconds;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(
+					"compression=%s ratio=%.2f encode=%.1fMB/s decode=%.1fMB/s",
+					compression,
+					uncompressedBytes * 1.0 / Math.max( compressedBytes, 1 ),
+					uncompressedBytes * 1e-6 / encodeSeconds,
+					uncompressedBytes * 1e-6 / decodeSeconds );
+		}
+
+	}
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final String group = args[ 0 ];
+		final String dataset = args[ 1 ];
+		final int numBlocks = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 16;
+		final int iterations = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 3;
+		for ( final Result result : benchmark( group, dataset, numBlocks, iterations ) )
+			System.out.println( result );
+	}
+
+	public static List< Result > benchmark( final String group, final String dataset, final int numBlocks, final int iterations ) throws IOException
+	{
+		final N5FSReader reader = new N5FSReader( group );
+		final DatasetAttributes attributes = reader.getDatasetAttributes( dataset );
+		final List< DataBlock< ? > > blocks = sampleBlocks( reader, dataset, attributes, numBlocks );
+		final List< Result > results = new ArrayList<>();
+		if ( blocks.size() == 0 )
+			return results;
+
+		final int bytesPerElement = CachingN5FSReader.bytesPerElement( attributes );
+		final long uncompressedBytes = blocks.stream().mapToLong( b -> ( long ) b.getNumElements() * bytesPerElement ).sum();
+		final Path tmp = Files.createTempDirectory( "compression-benchmark" );
+		try
+		{
+			final N5FSWriter writer = new N5FSWriter( tmp.toString() );
+			for ( final CompressionType compression : CompressionType.values() )
+			{
+				final String target = compression.name();
+				writer.createDataset( target, attributes.getDimensions(), attributes.getBlockSize(), attributes.getDataType(), compression );
+				final DatasetAttributes targetAttributes = writer.getDatasetAttributes( target );
+				long encodeTime = 0;
+				long decodeTime = 0;
+				for ( int iteration = 0; iteration < iterations + 1; ++iteration )
+				{
+					final long t0 = System.nanoTime();
+					for ( final DataBlock< ? > block : blocks )
+						writer.writeBlock( target, targetAttributes, block );
+					final long t1 = System.nanoTime();
+					for ( final DataBlock< ? > block : blocks )
+						writer.readBlock( target, targetAttributes, block.getGridPosition() );
+					final long t2 = System.nanoTime();
+					// first iteration is warm up
+					if ( iteration > 0 )
+					{
+						encodeTime += t1 - t0;
+						decodeTime += t2 - t1;
+					}
+				}
+				results.add( new Result(
+						compression,
+						uncompressedBytes,
+						blockBytes( tmp.resolve( target ) ),
+						Math.max( encodeTime, 1 ) * 1e-9 / Math.max( iterations, 1 ),
+						Math.max( decodeTime, 1 ) * 1e-9 / Math.max( iterations, 1 ) ) );
+			}
+		}
+		finally
+		{
+			try (final Stream< Path > paths = Files.walk( tmp ))
+			{
+				for ( final Path path : paths.sorted( Comparator.reverseOrder() ).collect( Collectors.toList() ) )
+					Files.delete( path );
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Up to {@code numBlocks} existing blocks at random (but reproducible)
+	 * grid positions.
+	 */
+	private static List< DataBlock< ? > > sampleBlocks( final N5FSReader reader, final String dataset, final DatasetAttributes attributes, final int numBlocks ) throws IOException
+	{
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSize = attributes.getBlockSize();
+		final long[] gridDimensions = new long[ dimensions.length ];
+		long numCells = 1;
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			gridDimensions[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			numCells *= gridDimensions[ d ];
+		}
+
+		final Random rng = new Random( 100 );
+		final List< DataBlock< ? > > blocks = new ArrayList<>();
+		for ( int attempt = 0; attempt < 4 * numBlocks && blocks.size() < numBlocks; ++attempt )
+		{
+			final long[] gridPosition = new long[ dimensions.length ];
+			long index = ( long ) ( rng.nextDouble() * numCells );
+			for ( int d = 0; d < gridPosition.length; ++d )
+			{
+				gridPosition[ d ] = index % gridDimensions[ d ];
+				index /= gridDimensions[ d ];
+			}
+			final DataBlock< ? > block = reader.readBlock( dataset, attributes, gridPosition );
+			if ( block != null )
+				blocks.add( block );
+		}
+		return blocks;
+	}
+
+	private static long blockBytes( final Path dataset ) throws IOException
+	{
+		try (final Stream< Path > paths = Files.walk( dataset ))
+		{
+			return paths
+					.map( Path::toFile )
+					.filter( File::isFile )
+					.filter( f -> !f.getName().equals( "attributes.json" ) )
+					.mapToLong( File::length )
+					.sum();
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package org.saalfeldlab.watersheds.benchmark;
+
+import java.util.Random;
+
+import org.saalfeldlab.watersheds.pipeline.FlatFlood;
+import org.saalfeldlab.watersheds.pipeline.Seeds;
+
+import net.imglib2.algorithm.morphology.watershed.PriorityQueueFastUtil;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Check that {@link FlatFlood} produces the same labels as the imglib2
+ * {@link net.imglib2.algorithm.morphology.watershed.Watersheds#flood} path
+ * used by {@link org.saalfeldlab.watersheds.WatershedsOn.Relief}, and compare
+ * run times. Reliefs are smoothed noise in a {@code size^3} block, once with
+ * continuous values and once quantized to {@code levels} values to provoke
+ * ties, each flooded from local minima and (inverted) from local maxima.
+ * {@link FlatFlood} floods ties in insertion order, which is not the tie order
+ * of {@link PriorityQueueFastUtil}, so labels are only expected to be equal
+ * up to the order of ties: differences on quantized reliefs are reported, but
+ * only differences on continuous reliefs fail the check. Arguments:
+ * {@code size levels iterations} (defaults {@code 64 16 5}). Exits with a
+ * non-zero status if any label of a continuous relief differs.
+ */
+public class FloodEquivalence
+{
+
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 64;
+		final int levels = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 16;
+		final int iterations = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 5;
+
+		long mismatches = 0;
+		long tieMismatches = 0;
+		for ( int iteration = 0; iteration < iterations; ++iteration )
+		{
+			final ArrayImg< FloatType, FloatArray > smooth = Reliefs.smoothNoise( size, new Random( iteration ) );
+			final ArrayImg< FloatType, FloatArray > quantized = Reliefs.quantize( smooth, levels );
+			for ( final boolean invert : new boolean[] { false, true } )
+			{
+				mismatches += compare( "continuous", smooth, invert );
+				tieMismatches += compare( "quantized", quantized, invert );
+			}
+		}
+
+		System.out.println( mismatches == 0 ? "All labels of continuous reliefs equal." : mismatches + " voxels of continuous reliefs differ." );
+		System.out.println( tieMismatches + " voxels of quantized reliefs differ (order of ties)." );
+		if ( mismatches > 0 )
+			System.exit( 1 );
+	}
+
+	private static long compare( final String name, final ArrayImg< FloatType, FloatArray > relief, final boolean invert )
+	{
+		final ArrayImg< UnsignedLongType, LongArray > generic = ArrayImgs.unsignedLongs( Reliefs.dimensions( relief ) );
+		final Seeds seeds = Reliefs.seedExtrema( relief, invert, generic );
+		final ArrayImg< UnsignedLongType, LongArray > array = ArrayImgs.unsignedLongs( generic.update( null ).getCurrentStorageArray().clone(), Reliefs.dimensions( relief ) );
+
+		final long t0 = System.nanoTime();
+		Reliefs.floodGeneric( relief, generic, seeds, invert, PriorityQueueFastUtil.FACTORY );
+		final long t1 = System.nanoTime();
+		FlatFlood.flood( Reliefs.flat( relief, invert ), array, seeds, invert );
+		final long t2 = System.nanoTime();
+
+		final long mismatches = Reliefs.countDifferences( generic, array );
+		System.out.println( String.format(
+				"%s invert=%b seeds=%d generic=%.2fms array=%.2fms mismatches=%d",
+				name,
+				invert,
+				seeds.size(),
+				( t1 - t0 ) * 1e-6,
+				( t2 - t1 ) * 1e-6,
+				mismatches ) );
+		return mismatches;
+	}
+
+}
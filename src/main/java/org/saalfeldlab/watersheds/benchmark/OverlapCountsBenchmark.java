@@ -0,0 +1,210 @@
+package org.saalfeldlab.watersheds.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
+import org.saalfeldlab.watersheds.pipeline.overlap.match.FindMatchesAgreementInBiggestOverlap;
+import org.saalfeldlab.watersheds.pipeline.overlap.match.OverlapCounts;
+
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import scala.Tuple2;
+
+/**
+ * Compare overlap counting with nested Trove maps (one map per label) against
+ * the flat {@link OverlapCounts} tables for the biggest overlap agreement
+ * matcher, on pairs of {@code size x size} faces with roughly
+ * {@code numLabels} Voronoi regions each. The second face is a jittered copy
+ * of the first with different ids. Arguments: {@code size numLabels}
+ * (defaults {@code 1000 3000}).
+ */
+public class OverlapCountsBenchmark
+{
+
+	private static final int WARMUP_ITERATIONS = 5;
+
+	private static final int ITERATIONS = 20;
+
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 1000;
+		final int numLabels = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 3000;
+
+		final Random rng = new Random( 100 );
+		final long[] lower = voronoiFace( size, numLabels, 0, rng );
+		final long[] upper = voronoiFace( size, numLabels, 2, rng );
+		final Tuple2< long[], long[] > data = new Tuple2<>( lower, upper );
+
+		final FindMatchesAgreementInBiggestOverlap hashed = new FindMatchesAgreementInBiggestOverlap( OverlapCounts.Method.HASH );
+		final FindMatchesAgreementInBiggestOverlap sorted = new FindMatchesAgreementInBiggestOverlap( OverlapCounts.Method.SORT );
+
+		for ( int i = 0; i < WARMUP_ITERATIONS; ++i )
+		{
+			runNested( data );
+			run( hashed, data );
+			run( sorted, data );
+		}
+
+		long nestedTime = 0;
+		long hashedTime = 0;
+		long sortedTime = 0;
+		int nestedSets = 0;
+		int hashedSets = 0;
+		int sortedSets = 0;
+		for ( int i = 0; i < ITERATIONS; ++i )
+		{
+			final long t0 = System.nanoTime();
+			nestedSets = runNested( data ).setCount();
+			final long t1 = System.nanoTime();
+			hashedSets = run( hashed, data ).setCount();
+			final long t2 = System.nanoTime();
+			sortedSets = run( sorted, data ).setCount();
+			final long t3 = System.nanoTime();
+			nestedTime += t1 - t0;
+			hashedTime += t2 - t1;
+			sortedTime += t3 - t2;
+		}
+
+		System.out.println( String.format(
+				"face=%dx%d labels=%d nested=%.2fms hash=%.2fms sort=%.2fms sets=%d/%d/%d",
+				size,
+				size,
+				numLabels,
+				nestedTime * 1e-6 / ITERATIONS,
+				hashedTime * 1e-6 / ITERATIONS,
+				sortedTime * 1e-6 / ITERATIONS,
+				nestedSets,
+				hashedSets,
+				sortedSets ) );
+	}
+
+	private static UnionFindSparseCompact run( final FindMatchesAgreementInBiggestOverlap matcher, final Tuple2< long[], long[] > data )
+	{
+		final UnionFindSparseCompact uf = new UnionFindSparseCompact();
+		matcher.accept( data, uf );
+		return uf;
+	}
+
+	/**
+	 * Previous implementation with one {@link TLongLongHashMap} per label and
+	 * direction.
+	 */
+	private static UnionFindSparseCompact runNested( final Tuple2< long[], long[] > data )
+	{
+		final TLongObjectHashMap< TLongLongHashMap > forwardCounts = new TLongObjectHashMap<>();
+		final TLongObjectHashMap< TLongLongHashMap > backwardCounts = new TLongObjectHashMap<>();
+		final long[] lowerData = data._1();
+		final long[] upperData = data._2();
+		for ( int i = 0; i < upperData.length; ++i )
+		{
+			final long ud = upperData[ i ];
+			final long ld = lowerData[ i ];
+			if ( ud != 0 && ld != 0 )
+			{
+				addMatch( forwardCounts, ud, ld );
+				addMatch( backwardCounts, ld, ud );
+			}
+		}
+
+		final TLongObjectHashMap< TLongArrayList > forward = getMaxOverlap( forwardCounts );
+		final TLongObjectHashMap< TLongArrayList > backward = getMaxOverlap( backwardCounts );
+		final UnionFindSparseCompact uf = new UnionFindSparseCompact();
+		for ( final TLongObjectIterator< TLongArrayList > it = forward.iterator(); it.hasNext(); )
+		{
+			it.advance();
+			if ( it.value().size() == 1 )
+			{
+				final TLongArrayList other = backward.get( it.value().get( 0 ) );
+				if ( other != null && other.size() == 1 && other.get( 0 ) == it.key() )
+					uf.join( it.key(), it.value().get( 0 ) );
+			}
+		}
+		return uf;
+	}
+
+	private static void addMatch( final TLongObjectHashMap< TLongLongHashMap > counts, final long id1, final long id2 )
+	{
+		if ( !counts.contains( id1 ) )
+			counts.put( id1, new TLongLongHashMap() );
+		final TLongLongHashMap c = counts.get( id1 );
+		c.put( id2, c.containsKey( id2 ) ? c.get( id2 ) + 1 : 1 );
+	}
+
+	private static TLongObjectHashMap< TLongArrayList > getMaxOverlap( final TLongObjectHashMap< TLongLongHashMap > counts )
+	{
+		final TLongObjectHashMap< TLongArrayList > overlapArgMax = new TLongObjectHashMap<>();
+		for ( final TLongObjectIterator< TLongLongHashMap > it = counts.iterator(); it.hasNext(); )
+		{
+			it.advance();
+			final TLongArrayList matchesList = new TLongArrayList();
+			overlapArgMax.put( it.key(), matchesList );
+			long maxCount = 0;
+			for ( final TLongLongIterator otherIt = it.value().iterator(); otherIt.hasNext(); )
+			{
+				otherIt.advance();
+				if ( otherIt.value() > maxCount )
+				{
+					maxCount = otherIt.value();
+					matchesList.clear();
+					matchesList.add( otherIt.key() );
+				}
+				else if ( otherIt.value() == maxCount )
+					matchesList.add( otherIt.key() );
+			}
+		}
+		return overlapArgMax;
+	}
+
+	/**
+	 * Voronoi regions of jittered grid seeds, seed positions displaced by up
+	 * to {@code jitter} pixels. Ids are offset by a random value so both faces
+	 * use different, sparse ids.
+	 */
+	private static long[] voronoiFace( final int size, final int numLabels, final int jitter, final Random rng )
+	{
+		final int cellsPerDim = ( int ) Math.max( Math.round( Math.sqrt( numLabels ) ), 1 );
+		final double cellSize = size * 1.0 / cellsPerDim;
+		final Random seedRng = new Random( 1 );
+		final double[] seedX = new double[ cellsPerDim * cellsPerDim ];
+		final double[] seedY = new double[ seedX.length ];
+		for ( int cy = 0, i = 0; cy < cellsPerDim; ++cy )
+			for ( int cx = 0; cx < cellsPerDim; ++cx, ++i )
+			{
+				seedX[ i ] = ( cx + seedRng.nextDouble() ) * cellSize + ( rng.nextDouble() * 2 - 1 ) * jitter;
+				seedY[ i ] = ( cy + seedRng.nextDouble() ) * cellSize + ( rng.nextDouble() * 2 - 1 ) * jitter;
+			}
+
+		final long idOffset = 1 + rng.nextInt( 1 << 20 ) * 1000L;
+		final long[] face = new long[ size * size ];
+		for ( int y = 0, i = 0; y < size; ++y )
+			for ( int x = 0; x < size; ++x, ++i )
+			{
+				final int cx = Math.min( ( int ) ( x / cellSize ), cellsPerDim - 1 );
+				final int cy = Math.min( ( int ) ( y / cellSize ), cellsPerDim - 1 );
+				double minDistance = Double.MAX_VALUE;
+				int argMin = 0;
+				for ( int ny = Math.max( cy - 1, 0 ); ny <= Math.min( cy + 1, cellsPerDim - 1 ); ++ny )
+					for ( int nx = Math.max( cx - 1, 0 ); nx <= Math.min( cx + 1, cellsPerDim - 1 ); ++nx )
+					{
+						final int s = ny * cellsPerDim + nx;
+						final double dx = seedX[ s ] - x;
+						final double dy = seedY[ s ] - y;
+						final double distance = dx * dx + dy * dy;
+						if ( distance < minDistance )
+						{
+							minDistance = distance;
+							argMin = s;
+						}
+					}
+				face[ i ] = idOffset + argMin;
+			}
+		// some background
+		Arrays.fill( face, 0, size, 0 );
+		return face;
+	}
+
+}
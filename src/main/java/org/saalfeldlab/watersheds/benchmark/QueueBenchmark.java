@@ -0,0 +1,85 @@
+package org.saalfeldlab.watersheds.benchmark;
+
+import java.util.Random;
+
+import org.saalfeldlab.watersheds.pipeline.FlatFlood;
+import org.saalfeldlab.watersheds.pipeline.QueueType;
+import org.saalfeldlab.watersheds.pipeline.Seeds;
+
+import net.imglib2.algorithm.morphology.watershed.HierarchicalPriorityQueueQuantized;
+import net.imglib2.algorithm.morphology.watershed.PriorityQueueFastUtil;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Compare flooding a {@code size^3} block with each {@link QueueType}:
+ * {@link HierarchicalPriorityQueueQuantized} (with {@code bins} bins over
+ * {@code [0, 1]}) and {@link PriorityQueueFastUtil} through the imglib2
+ * flood, and binary and radix heaps through {@link FlatFlood}. Reliefs in
+ * {@code [0, 1]} are smooth noise, smooth noise quantized to 256 values (like
+ * 8 bit predictions), and smooth noise raised to the fourth power (most
+ * values close to zero, like boundary predictions). Seeds are strict local
+ * minima only, so non-strict minima of the 8 bit relief are basins without a
+ * seed. Differences are counted against {@link QueueType#FASTUTIL} and against
+ * {@link QueueType#HEAP} ({@link QueueType#RADIX} should not differ from
+ * {@link QueueType#HEAP}). Arguments: {@code size bins iterations} (defaults
+ * {@code 128 255 5}).
+ */
+public class QueueBenchmark
+{
+
+	public static void main( final String[] args )
+	{
+		final int size = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 128;
+		final int bins = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 255;
+		final int iterations = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 5;
+
+		final ArrayImg< FloatType, FloatArray > smooth = Reliefs.normalize( Reliefs.smoothNoise( size, new Random( 100 ) ) );
+		final String[] names = { "smooth", "uint8", "skewed" };
+		@SuppressWarnings( "unchecked" )
+		final ArrayImg< FloatType, FloatArray >[] reliefs = new ArrayImg[] { smooth, Reliefs.quantize( smooth, 256 ), Reliefs.skew( smooth, 4.0 ) };
+
+		for ( int r = 0; r < reliefs.length; ++r )
+		{
+			final ArrayImg< FloatType, FloatArray > relief = reliefs[ r ];
+			final ArrayImg< UnsignedLongType, LongArray > seedLabels = ArrayImgs.unsignedLongs( Reliefs.dimensions( relief ) );
+			final Seeds seeds = Reliefs.seedExtrema( relief, false, seedLabels );
+			final long[] seedData = seedLabels.update( null ).getCurrentStorageArray();
+
+			@SuppressWarnings( "unchecked" )
+			final ArrayImg< UnsignedLongType, LongArray >[] results = new ArrayImg[ QueueType.values().length ];
+			final long[] times = new long[ QueueType.values().length ];
+			for ( int iteration = 0; iteration < iterations + 1; ++iteration )
+				for ( final QueueType queueType : QueueType.values() )
+				{
+					final ArrayImg< UnsignedLongType, LongArray > labels = ArrayImgs.unsignedLongs( seedData.clone(), Reliefs.dimensions( relief ) );
+					final long t0 = System.nanoTime();
+					if ( queueType.isArrayBased() )
+						FlatFlood.flood( Reliefs.flat( relief, false ), labels, seeds, false, queueType );
+					else
+						Reliefs.floodGeneric( relief, labels, seeds, false, queueType == QueueType.HIERARCHICAL ? HierarchicalPriorityQueueQuantized.factory( bins, 0.0, 1.0 ) : PriorityQueueFastUtil.FACTORY );
+					final long t1 = System.nanoTime();
+					// first iteration is warm up
+					if ( iteration > 0 )
+						times[ queueType.ordinal() ] += t1 - t0;
+					results[ queueType.ordinal() ] = labels;
+				}
+
+			for ( final QueueType queueType : QueueType.values() )
+				System.out.println( String.format(
+						"relief=%s size=%d seeds=%d queue=%s time=%.2fms differences=%d differencesToHeap=%d",
+						names[ r ],
+						size,
+						seeds.size(),
+						queueType,
+						times[ queueType.ordinal() ] * 1e-6 / iterations,
+						Reliefs.countDifferences( results[ QueueType.FASTUTIL.ordinal() ], results[ queueType.ordinal() ] ),
+						Reliefs.countDifferences( results[ QueueType.HEAP.ordinal() ], results[ queueType.ordinal() ] ) ) );
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package org.saalfeldlab.watersheds.benchmark;
+
+import java.util.Random;
+
+import org.saalfeldlab.watersheds.pipeline.Distance;
+import org.saalfeldlab.watersheds.pipeline.FlatRelief;
+import org.saalfeldlab.watersheds.pipeline.Seeds;
+
+import net.imglib2.algorithm.morphology.watershed.PriorityQueueFactory;
+import net.imglib2.algorithm.morphology.watershed.Watersheds;
+import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Synthetic relief blocks and flooding helpers shared by the flood
+ * benchmarks.
+ */
+class Reliefs
+{
+
+	/**
+	 * Uniform noise in {@code [0, 1)}, box filtered (radius 2) three times
+	 * along each dimension.
+	 */
+	public static ArrayImg< FloatType, FloatArray > smoothNoise( final int size, final Random rng )
+	{
+		final float[] data = new float[ size * size * size ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = rng.nextFloat();
+		final float[] tmp = new float[ data.length ];
+		final int[] strides = { 1, size, size * size };
+		for ( int pass = 0; pass < 3; ++pass )
+			for ( final int stride : strides )
+			{
+				for ( int i = 0; i < data.length; ++i )
+				{
+					final int p = i / stride % size;
+					float sum = 0;
+					int count = 0;
+					for ( int o = Math.max( p - 2, 0 ); o <= Math.min( p + 2, size - 1 ); ++o, ++count )
+						sum += data[ i + ( o - p ) * stride ];
+					tmp[ i ] = sum / count;
+				}
+				System.arraycopy( tmp, 0, data, 0, data.length );
+			}
+		return ArrayImgs.floats( data, size, size, size );
+	}
+
+	/**
+	 * Linearly map to {@code [0, 1]}.
+	 */
+	public static ArrayImg< FloatType, FloatArray > normalize( final ArrayImg< FloatType, FloatArray > img )
+	{
+		return skew( img, 1.0 );
+	}
+
+	/**
+	 * Normalize to {@code [0, 1]} and round to {@code levels} values.
+	 */
+	public static ArrayImg< FloatType, FloatArray > quantize( final ArrayImg< FloatType, FloatArray > img, final int levels )
+	{
+		final float[] data = normalize( img ).update( null ).getCurrentStorageArray();
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = Math.round( data[ i ] * ( levels - 1 ) ) / ( levels - 1.0f );
+		return ArrayImgs.floats( data, dimensions( img ) );
+	}
+
+	/**
+	 * Normalize to {@code [0, 1]} and raise to {@code exponent}, e.g. to
+	 * concentrate most values close to zero like in boundary predictions.
+	 */
+	public static ArrayImg< FloatType, FloatArray > skew( final ArrayImg< FloatType, FloatArray > img, final double exponent )
+	{
+		final float[] source = img.update( null ).getCurrentStorageArray();
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for ( final float v : source )
+		{
+			min = Math.min( min, v );
+			max = Math.max( max, v );
+		}
+		final float[] data = new float[ source.length ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( float ) Math.pow( ( source[ i ] - min ) / ( max - min ), exponent );
+		return ArrayImgs.floats( data, dimensions( img ) );
+	}
+
+	public static FloatType extension( final boolean invert )
+	{
+		return new FloatType( invert ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY );
+	}
+
+	public static FlatRelief flat( final ArrayImg< FloatType, FloatArray > relief, final boolean invert )
+	{
+		return FlatRelief.copy( Views.extendValue( relief, extension( invert ) ), relief );
+	}
+
+	/**
+	 * Label strict local minima (maxima if {@code invert}) of {@code relief}
+	 * in {@code labels}.
+	 */
+	public static Seeds seedExtrema( final ArrayImg< FloatType, FloatArray > relief, final boolean invert, final ArrayImg< UnsignedLongType, LongArray > labels )
+	{
+		final long[] labelData = labels.update( null ).getCurrentStorageArray();
+		final FlatRelief flatRelief = flat( relief, invert );
+		final Seeds seeds = new Seeds();
+		for ( final FlatRelief.CoreCursor c = flatRelief.coreCursor(); c.hasNext(); )
+		{
+			c.fwd();
+			if ( flatRelief.isExtremum( c.paddedIndex(), invert ) )
+			{
+				seeds.add( c.index() );
+				labelData[ c.index() ] = seeds.size();
+			}
+		}
+		seeds.setNumLabels( seeds.size() );
+		return seeds;
+	}
+
+	/**
+	 * Flood like {@link org.saalfeldlab.watersheds.WatershedsOn.Relief}.
+	 */
+	public static void floodGeneric(
+			final ArrayImg< FloatType, FloatArray > relief,
+			final ArrayImg< UnsignedLongType, LongArray > labels,
+			final Seeds seeds,
+			final boolean invert,
+			final PriorityQueueFactory factory )
+	{
+		try
+		{
+			Watersheds.flood(
+					Views.extendValue( relief, extension( invert ) ),
+					Views.extendValue( labels, new UnsignedLongType() ),
+					labels,
+					seeds.asLocalizables( dimensions( labels ), new long[ labels.numDimensions() ] ),
+					new DiamondShape( 1 ),
+					Distance.< FloatType >get( invert ),
+					factory );
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	public static long[] dimensions( final ArrayImg< ?, ? > img )
+	{
+		final long[] dimensions = new long[ img.numDimensions() ];
+		img.dimensions( dimensions );
+		return dimensions;
+	}
+
+	public static long countDifferences( final ArrayImg< UnsignedLongType, LongArray > labels1, final ArrayImg< UnsignedLongType, LongArray > labels2 )
+	{
+		final long[] data1 = labels1.update( null ).getCurrentStorageArray();
+		final long[] data2 = labels2.update( null ).getCurrentStorageArray();
+		long differences = 0;
+		for ( int i = 0; i < data1.length; ++i )
+			if ( data1[ i ] != data2[ i ] )
+				++differences;
+		return differences;
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.saalfeldlab.watersheds.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.saalfeldlab.watersheds.UnionFindSparse;
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
+
+/**
+ * Compare {@link UnionFindSparse} and {@link UnionFindSparseCompact} on random
+ * sparse edge lists. Edge counts can be passed as arguments, e.g.
+ * {@code 1000000 10000000 100000000} (the largest needs a few GB of heap).
+ */
+public class UnionFindBenchmark
+{
+
+	private static final int WARMUP_ITERATIONS = 2;
+
+	private static final int ITERATIONS = 3;
+
+	public static void main( final String[] args )
+	{
+		final long[] edgeCounts = args.length > 0 ? Arrays.stream( args ).mapToLong( Long::parseLong ).toArray() : new long[] { 1_000_000, 10_000_000 };
+		for ( final long edgeCount : edgeCounts )
+		{
+			final int n = ( int ) edgeCount;
+			final long[][] edges = randomEdges( n, n / 2 + 1, 100 );
+
+			for ( int i = 0; i < WARMUP_ITERATIONS; ++i )
+			{
+				runTrove( edges );
+				runCompact( edges );
+			}
+
+			long troveTime = 0;
+			long compactTime = 0;
+			int troveSets = 0;
+			int compactSets = 0;
+			for ( int i = 0; i < ITERATIONS; ++i )
+			{
+				final long t0 = System.nanoTime();
+				troveSets = runTrove( edges ).setCount();
+				final long t1 = System.nanoTime();
+				compactSets = runCompact( edges ).setCount();
+				final long t2 = System.nanoTime();
+				troveTime += t1 - t0;
+				compactTime += t2 - t1;
+			}
+
+			System.out.println( String.format(
+					"edges=%d %s=%.1fms %s=%.1fms speedup=%.2f sets=%d/%d",
+					n,
+					UnionFindSparse.class.getSimpleName(),
+					troveTime * 1e-6 / ITERATIONS,
+					UnionFindSparseCompact.class.getSimpleName(),
+					compactTime * 1e-6 / ITERATIONS,
+					troveTime * 1.0 / compactTime,
+					troveSets,
+					compactSets ) );
+		}
+	}
+
+	private static UnionFindSparse runTrove( final long[][] edges )
+	{
+		final UnionFindSparse uf = new UnionFindSparse();
+		final long[] ids1 = edges[ 0 ];
+		final long[] ids2 = edges[ 1 ];
+		for ( int i = 0; i < ids1.length; ++i )
+			uf.join( uf.findRoot( ids1[ i ] ), uf.findRoot( ids2[ i ] ) );
+		return uf;
+	}
+
+	private static UnionFindSparseCompact runCompact( final long[][] edges )
+	{
+		final UnionFindSparseCompact uf = new UnionFindSparseCompact();
+		uf.joinAll( edges[ 0 ], edges[ 1 ] );
+		return uf;
+	}
+
+	/**
+	 * Random edges between {@code numIds} sparse ids spread over
+	 * {@code [1, numIds * spread]}.
+	 */
+	private static long[][] randomEdges( final int numEdges, final int numIds, final long spread )
+	{
+		final Random rng = new Random( 100 );
+		final long[] ids = new long[ numIds ];
+		for ( int i = 0; i < numIds; ++i )
+			ids[ i ] = 1 + i * spread + ( long ) ( rng.nextDouble() * spread );
+		final long[] ids1 = new long[ numEdges ];
+		final long[] ids2 = new long[ numEdges ];
+		for ( int i = 0; i < numEdges; ++i )
+		{
+			ids1[ i ] = ids[ rng.nextInt( numIds ) ];
+			ids2[ i ] = ids[ rng.nextInt( numIds ) ];
+		}
+		return new long[][] { ids1, ids2 };
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.saalfeldlab.watersheds.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+
+/**
+ * {@link N5FSReader} that looks up decoded blocks in a {@link ChunkCache}
+ * before reading and decompressing them from disk. Cached blocks are shared,
+ * callers must not modify their data.
+ */
+public class CachingN5FSReader extends N5FSReader
+{
+
+	private final String basePath;
+
+	private final ChunkCache cache;
+
+	public CachingN5FSReader( final String basePath, final ChunkCache cache )
+	{
+		super( basePath );
+		this.basePath = basePath;
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the cached block if present, otherwise the block read from
+	 *         disk, which is then cached. The returned instance is shared
+	 *         with all other readers of the same {@link ChunkCache}, callers
+	 *         must not modify it or its data.
+	 */
+	@Override
+	public DataBlock< ? > readBlock( final String pathName, final DatasetAttributes datasetAttributes, final long[] gridPosition ) throws IOException
+	{
+		final String key = basePath + "/" + pathName + "/" + Arrays.toString( gridPosition );
+		final DataBlock< ? > cached = cache.get( key );
+		if ( cached != null )
+			return cached;
+
+		final DataBlock< ? > block = super.readBlock( pathName, datasetAttributes, gridPosition );
+		if ( block != null )
+			cache.put( key, block, ( long ) block.getNumElements() * bytesPerElement( datasetAttributes ) );
+		return block;
+	}
+
+	public static int bytesPerElement( final DatasetAttributes attributes )
+	{
+		switch ( attributes.getDataType() )
+		{
+		case INT8:
+		case UINT8:
+			return 1;
+		case INT16:
+		case UINT16:
+			return 2;
+		case INT32:
+		case UINT32:
+		case FLOAT32:
+			return 4;
+		default:
+			return 8;
+		}
+	}
+
+}
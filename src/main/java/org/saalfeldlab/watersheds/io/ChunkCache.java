@@ -0,0 +1,175 @@
+package org.saalfeldlab.watersheds.io;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JVM-wide LRU cache of decoded N5 data blocks with a bounded byte budget,
+ * shared by all tasks of an executor. Values are held through
+ * {@link SoftReference}s so the garbage collector can reclaim them under
+ * memory pressure before the budget is exhausted. Reclaimed entries are
+ * removed from the budget on the next {@link #get} or {@link #put}, before
+ * any live entry is evicted.
+ */
+public class ChunkCache
+{
+
+	private static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
+
+	private static ChunkCache instance = null;
+
+	private static final HashSet< Long > ignoredBudgets = new HashSet<>();
+
+	/**
+	 * @param maxBytes
+	 *            budget for decoded blocks, only used when the cache is
+	 *            created by the first call. A warning is logged (once per
+	 *            budget) if a later call asks for a different budget.
+	 */
+	public static synchronized ChunkCache getInstance( final long maxBytes )
+	{
+		if ( instance == null )
+			instance = new ChunkCache( maxBytes );
+		else if ( maxBytes != instance.maxBytes && ignoredBudgets.add( maxBytes ) )
+			LOG.warn( "Requested chunk cache budget of {} bytes, but the cache of this JVM was created with {} bytes. Keeping {} bytes.", maxBytes, instance.maxBytes, instance.maxBytes );
+		return instance;
+	}
+
+	private static class Entry extends SoftReference< DataBlock< ? > >
+	{
+		private final String key;
+
+		private final long bytes;
+
+		public Entry( final String key, final DataBlock< ? > block, final long bytes, final ReferenceQueue< DataBlock< ? > > queue )
+		{
+			super( block, queue );
+			this.key = key;
+			this.bytes = bytes;
+		}
+	}
+
+	private final long maxBytes;
+
+	private final LinkedHashMap< String, Entry > entries = new LinkedHashMap<>( 64, 0.75f, true );
+
+	private final ReferenceQueue< DataBlock< ? > > reclaimed = new ReferenceQueue<>();
+
+	private long bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ChunkCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return cached block or {@code null}
+	 */
+	public synchronized DataBlock< ? > get( final String key )
+	{
+		removeReclaimed();
+		final Entry entry = entries.get( key );
+		final DataBlock< ? > block = entry == null ? null : entry.get();
+		if ( block == null )
+		{
+			if ( entry != null )
+				remove( key );
+			misses.incrementAndGet();
+		}
+		else
+			hits.incrementAndGet();
+		return block;
+	}
+
+	public synchronized void put( final String key, final DataBlock< ? > block, final long blockBytes )
+	{
+		if ( blockBytes > maxBytes )
+			return;
+		removeReclaimed();
+		remove( key );
+		entries.put( key, new Entry( key, block, blockBytes, reclaimed ) );
+		bytes += blockBytes;
+		for ( final Iterator< Map.Entry< String, Entry > > it = entries.entrySet().iterator(); bytes > maxBytes && it.hasNext(); )
+		{
+			bytes -= it.next().getValue().bytes;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void remove( final String key )
+	{
+		final Entry entry = entries.remove( key );
+		if ( entry != null )
+			bytes -= entry.bytes;
+	}
+
+	/**
+	 * Remove entries whose blocks were reclaimed by the garbage collector
+	 * and that are still in the cache (not replaced or evicted since).
+	 */
+	private void removeReclaimed()
+	{
+		for ( Reference< ? extends DataBlock< ? > > reference = reclaimed.poll(); reference != null; reference = reclaimed.poll() )
+		{
+			// does not touch the access order, unlike get
+			final Entry entry = ( Entry ) reference;
+			if ( entries.remove( entry.key, entry ) )
+				bytes -= entry.bytes;
+		}
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	@Override
+	public String toString()
+	{
+		final long hits = getHits();
+		final long misses = getMisses();
+		return String.format(
+				"%s: %d hits, %d misses (hit rate %.2f), %d evictions, %d/%d bytes",
+				getClass().getSimpleName(),
+				hits,
+				misses,
+				hits + misses == 0 ? 0.0 : hits * 1.0 / ( hits + misses ),
+				getEvictions(),
+				getBytes(),
+				maxBytes );
+	}
+
+}
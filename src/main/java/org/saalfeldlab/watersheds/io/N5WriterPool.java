@@ -0,0 +1,53 @@
+package org.saalfeldlab.watersheds.io;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+
+/**
+ * JVM-wide pool of {@link N5FSReader}s and {@link N5FSWriter}s per base path,
+ * shared by all tasks of an executor, so that writing a block does not need a
+ * new writer. Dataset attributes are not pooled: datasets may be re-created
+ * with different attributes while the JVM runs (e.g. in local mode), see
+ * {@code WritePartition} for passing them to a write stage instead.
+ */
+public class N5WriterPool
+{
+
+	private static final HashMap< String, N5FSReader > readers = new HashMap<>();
+
+	private static final HashMap< String, N5FSWriter > writers = new HashMap<>();
+
+	/**
+	 *
+	 * @return pooled writer for {@code basePath} if there is one, pooled
+	 *         reader otherwise
+	 */
+	public static synchronized N5FSReader reader( final String basePath ) throws IOException
+	{
+		final N5FSWriter writer = writers.get( basePath );
+		if ( writer != null )
+			return writer;
+		N5FSReader reader = readers.get( basePath );
+		if ( reader == null )
+		{
+			reader = new N5FSReader( basePath );
+			readers.put( basePath, reader );
+		}
+		return reader;
+	}
+
+	public static synchronized N5FSWriter writer( final String basePath ) throws IOException
+	{
+		N5FSWriter writer = writers.get( basePath );
+		if ( writer == null )
+		{
+			writer = new N5FSWriter( basePath );
+			writers.put( basePath, writer );
+		}
+		return writer;
+	}
+
+}
@@ -0,0 +1,140 @@
+package org.saalfeldlab.watersheds.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * JVM-wide pool of writer threads that compress and write {@link DataBlock}s
+ * in the background, shared by all tasks of an executor, so that tasks can go
+ * on with the next block while the previous one is written. At most
+ * {@code capacity} blocks are queued or being written at any time, submitting
+ * blocks when the queue is full waits for a slot (back-pressure). Each task
+ * submits through its own {@link Batch} and waits for all of its blocks with
+ * {@link Batch#flush()} before it completes.
+ */
+public class WriteBehind
+{
+
+	private static WriteBehind instance = null;
+
+	/**
+	 * @param numThreads
+	 *            number of writer threads, only used when the pool is created
+	 *            by the first call.
+	 * @param capacity
+	 *            maximum number of blocks queued or being written, only used
+	 *            when the pool is created by the first call.
+	 */
+	public static synchronized WriteBehind getInstance( final int numThreads, final int capacity )
+	{
+		if ( instance == null )
+			instance = new WriteBehind( numThreads, capacity );
+		return instance;
+	}
+
+	private final ExecutorService writers;
+
+	private final Semaphore slots;
+
+	public WriteBehind( final int numThreads, final int capacity )
+	{
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.writers = Executors.newFixedThreadPool( numThreads, r -> {
+			final Thread thread = new Thread( r, "write-behind-" + threadCount.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		this.slots = new Semaphore( Math.max( capacity, 1 ) );
+	}
+
+	public Batch batch()
+	{
+		return new Batch();
+	}
+
+	/**
+	 * Blocks submitted by a single task. Not thread safe.
+	 */
+	public class Batch
+	{
+
+		private final ArrayList< Future< ? > > pending = new ArrayList<>();
+
+		/**
+		 * Queue {@code block} for writing, wait for a free slot if
+		 * {@code capacity} blocks are pending. Rethrows failures of blocks of
+		 * this batch that were written since the last call.
+		 */
+		public void submit( final N5Writer writer, final String dataset, final DatasetAttributes attributes, final DataBlock< ? > block ) throws IOException, InterruptedException
+		{
+			slots.acquire();
+			try
+			{
+				pending.add( writers.submit( () -> {
+					try
+					{
+						writer.writeBlock( dataset, attributes, block );
+						return null;
+					}
+					finally
+					{
+						slots.release();
+					}
+				} ) );
+			}
+			catch ( final RejectedExecutionException e )
+			{
+				slots.release();
+				throw e;
+			}
+
+			for ( final Iterator< Future< ? > > it = pending.iterator(); it.hasNext(); )
+			{
+				final Future< ? > future = it.next();
+				if ( future.isDone() )
+				{
+					get( future );
+					it.remove();
+				}
+			}
+		}
+
+		/**
+		 * Wait until all blocks of this batch are written.
+		 */
+		public void flush() throws IOException, InterruptedException
+		{
+			for ( final Future< ? > future : pending )
+				get( future );
+			pending.clear();
+		}
+
+	}
+
+	private static void get( final Future< ? > future ) throws IOException, InterruptedException
+	{
+		try
+		{
+			future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException ) e.getCause();
+			throw new IOException( e.getCause() );
+		}
+	}
+
+}
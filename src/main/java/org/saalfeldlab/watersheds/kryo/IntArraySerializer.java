@@ -0,0 +1,27 @@
+package org.saalfeldlab.watersheds.kryo;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.imglib2.img.basictypeaccess.array.IntArray;
+
+public class IntArraySerializer extends Serializer< IntArray >
+{
+
+	@Override
+	public IntArray read( final Kryo kryo, final Input in, final Class< IntArray > type )
+	{
+		return new IntArray( in.readInts( in.readInt() ) );
+	}
+
+	@Override
+	public void write( final Kryo kryo, final Output out, final IntArray object )
+	{
+		final int[] arr = object.getCurrentStorageArray();
+		out.writeInt( arr.length );
+		out.writeInts( arr );
+	}
+
+}
\ No newline at end of file
@@ -6,6 +6,8 @@ import com.esotericsoftware.kryo.Kryo;
 
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.numeric.real.FloatType;
 
@@ -17,6 +19,8 @@ public class Registrator implements KryoRegistrator
 	{
 		kryo.register( FloatArray.class, new FloatArraySerializer() );
 		kryo.register( FloatType.class, new FloatTypeSerializer() );
+		kryo.register( IntArray.class, new IntArraySerializer() );
+		kryo.register( ShortArray.class, new ShortArraySerializer() );
 		kryo.register( RandomAccessibleInterval.class, new RandomAccessibleIntervalSerializer<>() );
 		kryo.register( CellGrid.class, new CellGridSerializer() );
 //		kryo.register( ArrayImg.class, new ArrayImgSerializer<>() );
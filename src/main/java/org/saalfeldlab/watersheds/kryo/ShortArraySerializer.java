@@ -0,0 +1,27 @@
+package org.saalfeldlab.watersheds.kryo;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+
+public class ShortArraySerializer extends Serializer< ShortArray >
+{
+
+	@Override
+	public ShortArray read( final Kryo kryo, final Input in, final Class< ShortArray > type )
+	{
+		return new ShortArray( in.readShorts( in.readInt() ) );
+	}
+
+	@Override
+	public void write( final Kryo kryo, final Output out, final ShortArray object )
+	{
+		final short[] arr = object.getCurrentStorageArray();
+		out.writeInt( arr.length );
+		out.writeShorts( arr );
+	}
+
+}
\ No newline at end of file
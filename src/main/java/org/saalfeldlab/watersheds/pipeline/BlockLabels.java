@@ -0,0 +1,82 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import java.io.Serializable;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Globally unique label ids without global coordination: the upper bits of
+ * an id hold the linear index of the watershed block, the lower
+ * {@link #localBits()} bits hold the label within the block. Enough bits are
+ * reserved for every voxel of a block (including halo) to be a separate
+ * label.
+ */
+public class BlockLabels implements Serializable
+{
+
+	private final long[] gridDimensions;
+
+	private final int[] cellDimensions;
+
+	private final int localBits;
+
+	public BlockLabels( final CellGrid grid, final int halo )
+	{
+		super();
+		final int nDim = grid.numDimensions();
+		this.gridDimensions = grid.getGridDimensions();
+		this.cellDimensions = new int[ nDim ];
+		grid.cellDimensions( cellDimensions );
+
+		long maxLabelsPerBlock = 1;
+		long numBlocks = 1;
+		for ( int d = 0; d < nDim; ++d )
+		{
+			maxLabelsPerBlock *= cellDimensions[ d ] + 2 * halo;
+			numBlocks *= gridDimensions[ d ];
+		}
+		this.localBits = bits( maxLabelsPerBlock + 1 );
+		final int blockBits = bits( numBlocks );
+		if ( localBits + blockBits > 63 )
+			throw new IllegalArgumentException( String.format(
+					"Cannot encode %d blocks with %d voxels each in 63 bits (needs %d + %d bits).",
+					numBlocks,
+					maxLabelsPerBlock,
+					blockBits,
+					localBits ) );
+	}
+
+	public int localBits()
+	{
+		return localBits;
+	}
+
+	/**
+	 * @return offset to add to labels (starting at one) of the block with
+	 *         minimum {@code blockMin}
+	 */
+	public long offset( final long[] blockMin )
+	{
+		final long[] cellPosition = new long[ blockMin.length ];
+		for ( int d = 0; d < cellPosition.length; ++d )
+			cellPosition[ d ] = blockMin[ d ] / cellDimensions[ d ];
+		return IntervalIndexer.positionToIndex( cellPosition, gridDimensions ) << localBits;
+	}
+
+	public long blockIndex( final long label )
+	{
+		return label >>> localBits;
+	}
+
+	public long localLabel( final long label )
+	{
+		return label & ( 1L << localBits ) - 1;
+	}
+
+	private static int bits( final long maxValue )
+	{
+		return 64 - Long.numberOfLeadingZeros( Math.max( maxValue, 1 ) );
+	}
+
+}
@@ -0,0 +1,96 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.spark.Partitioner;
+
+import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
+
+/**
+ * Assign watershed blocks (keyed by their min) to partitions such that
+ * spatially adjacent blocks end up in the same partition. Blocks are ordered
+ * by the Z-order (Morton) code of the input chunk that contains their min
+ * and, within a chunk, by the Z-order code of their own position. Runs of
+ * {@code blocksPerPartition} consecutive blocks form a partition, so blocks
+ * that read the same input chunks (including halos) are processed by the
+ * same executor.
+ */
+public class BlockPartitioner extends Partitioner
+{
+
+	private final HashMap< HashWrapper< long[] >, Integer > partitions;
+
+	private final int numPartitions;
+
+	/**
+	 *
+	 * @param blocks
+	 *            min of all blocks
+	 * @param blockSize
+	 *            size of watershed blocks
+	 * @param chunkSize
+	 *            chunk size of the input dataset
+	 * @param blocksPerPartition
+	 *            target number of blocks per partition
+	 */
+	public BlockPartitioner(
+			final Collection< HashWrapper< long[] > > blocks,
+			final int[] blockSize,
+			final int[] chunkSize,
+			final int blocksPerPartition )
+	{
+		super();
+		final List< HashWrapper< long[] > > sorted = new ArrayList<>( blocks );
+		final Comparator< HashWrapper< long[] > > byChunk = Comparator.comparingLong( b -> mortonCode( b.getData(), chunkSize ) );
+		sorted.sort( byChunk.thenComparingLong( b -> mortonCode( b.getData(), blockSize ) ) );
+
+		this.partitions = new HashMap<>();
+		for ( int i = 0; i < sorted.size(); ++i )
+			partitions.put( sorted.get( i ), i / blocksPerPartition );
+		this.numPartitions = Math.max( ( sorted.size() + blocksPerPartition - 1 ) / blocksPerPartition, 1 );
+	}
+
+	@Override
+	public int numPartitions()
+	{
+		return numPartitions;
+	}
+
+	@Override
+	public int getPartition( final Object key )
+	{
+		final Integer partition = partitions.get( key );
+		return partition == null ? Math.floorMod( key.hashCode(), numPartitions ) : partition;
+	}
+
+	@Override
+	public boolean equals( final Object other )
+	{
+		return other instanceof BlockPartitioner && ( ( BlockPartitioner ) other ).partitions.equals( partitions );
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return partitions.hashCode();
+	}
+
+	/**
+	 * Interleave the bits of {@code position / cellSize} across dimensions.
+	 */
+	public static long mortonCode( final long[] position, final int[] cellSize )
+	{
+		final int nDim = position.length;
+		final int bitsPerDimension = 64 / nDim;
+		long code = 0;
+		for ( int bit = 0; bit < bitsPerDimension; ++bit )
+			for ( int d = 0; d < nDim; ++d )
+				code |= ( position[ d ] / cellSize[ d ] >>> bit & 1 ) << bit * nDim + d;
+		return code;
+	}
+
+}
@@ -0,0 +1,41 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import org.apache.spark.api.java.function.PairFunction;
+
+import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
+import net.imglib2.type.numeric.IntegerType;
+import scala.Tuple2;
+
+/**
+ * Number of seed labels of each block, counted with
+ * {@link MakeSeeds.SeedGenerator#count} on the same interval (including
+ * halo) that {@link EmptySeedImage} allocates, but without allocating or
+ * writing a label block.
+ */
+public class CountSeeds< L extends IntegerType< L > > implements PairFunction< HashWrapper< long[] >, HashWrapper< long[] >, Long >
+{
+
+	private final MakeSeeds.SeedGenerator< L > seedGenerator;
+
+	private final int halo;
+
+	private final long[] max;
+
+	private final int[] blockSize;
+
+	public CountSeeds( final MakeSeeds.SeedGenerator< L > seedGenerator, final int halo, final long[] max, final int[] blockSize )
+	{
+		super();
+		this.seedGenerator = seedGenerator;
+		this.halo = halo;
+		this.max = max;
+		this.blockSize = blockSize;
+	}
+
+	@Override
+	public Tuple2< HashWrapper< long[] >, Long > call( final HashWrapper< long[] > block ) throws Exception
+	{
+		return new Tuple2<>( block, seedGenerator.count( EmptySeedImage.interval( block.getData(), halo, new long[ max.length ], max, blockSize ) ) );
+	}
+
+}
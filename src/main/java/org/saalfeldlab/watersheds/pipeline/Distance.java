@@ -12,6 +12,15 @@ public class Distance
 		return invert ? new InvertedDistance<>() : new RegularDistance<>();
 	}
 
+	/**
+	 * Map {@code distance} through the cumulative histogram of a block, to
+	 * priorities in {@code [0, 1]} with the same order.
+	 */
+	public static < T > ToDoubleBiFunction< T, T > equalized( final ToDoubleBiFunction< T, T > distance, final ReliefHistogram histogram )
+	{
+		return ( arg0, arg1 ) -> histogram.cdf( distance.applyAsDouble( arg0, arg1 ) );
+	}
+
 	private static class InvertedDistance< T extends RealType< T > > implements ToDoubleBiFunction< T, T >
 	{
 
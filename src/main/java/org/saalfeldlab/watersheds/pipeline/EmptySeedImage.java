@@ -49,16 +49,26 @@ public class EmptySeedImage< T extends NativeType< T > > implements PairFunction
 	@Override
 	public Tuple2< HashWrapper< long[] >, Tuple2< ArrayImg< T, ? >, long[] > > call( final HashWrapper< long[] > t ) throws Exception
 	{
-		final long[] min = t.getData().clone();
-		final long[] max = min.clone();
-		for ( int d = 0; d < min.length; ++d )
+		final FinalInterval interval = interval( t.getData(), halo, this.min, this.max, blockSize );
+		final long[] min = Intervals.minAsLongArray( interval );
+		LOG.debug( "Created interval (min={} max={}) for {}", Arrays.toString( min ), Arrays.toString( Intervals.maxAsLongArray( interval ) ), Arrays.toString( t.getData() ) );
+		return new Tuple2<>( t, new Tuple2<>( new ArrayImgFactory< T >().create( Intervals.dimensionsAsLongArray( interval ), this.t.getValue() ), min ) );
+	}
+
+	/**
+	 * Interval of the block at {@code blockMin}, grown by {@code halo} and
+	 * clipped to {@code [min, max]}.
+	 */
+	public static FinalInterval interval( final long[] blockMin, final int halo, final long[] min, final long[] max, final int[] blockSize )
+	{
+		final long[] intervalMin = new long[ blockMin.length ];
+		final long[] intervalMax = new long[ blockMin.length ];
+		for ( int d = 0; d < blockMin.length; ++d )
 		{
-			max[ d ] = Math.min( this.max[ d ], max[ d ] + halo + blockSize[ d ] - 1 );
-			min[ d ] = Math.max( this.min[ d ], min[ d ] - halo );
+			intervalMax[ d ] = Math.min( max[ d ], blockMin[ d ] + halo + blockSize[ d ] - 1 );
+			intervalMin[ d ] = Math.max( min[ d ], blockMin[ d ] - halo );
 		}
-		final FinalInterval interval = new FinalInterval( min, max );
-		LOG.debug( "Created interval (min={} max={}) for {}", Arrays.toString( min ), Arrays.toString( max ), Arrays.toString( t.getData() ) );
-		return new Tuple2<>( t, new Tuple2<>( new ArrayImgFactory< T >().create( Intervals.dimensionsAsLongArray( interval ), this.t.getValue() ), min ) );
+		return new FinalInterval( intervalMin, intervalMax );
 	}
 
 }
@@ -0,0 +1,548 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Seeded watershed flooding of a label block over a {@link FlatRelief}, on
+ * flat primitive arrays. Labels are copied into an array padded by one voxel
+ * that holds {@link #BORDER} outside the block, so neighbors never need bounds
+ * checks. Voxels are flooded in order of increasing relief value (decreasing
+ * if {@code invert}) from the face neighbors of the seeds and take the label
+ * of the voxel that enqueued them. Ties are flooded in order of insertion,
+ * so {@link QueueType#HEAP} and {@link QueueType#RADIX} produce the same
+ * labels.
+ */
+public class FlatFlood
+{
+
+	private static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
+
+	private static final long BORDER = -1;
+
+	public static < L extends IntegerType< L > > void flood( final FlatRelief relief, final ArrayImg< L, ? > labels, final Seeds seeds, final boolean invert )
+	{
+		flood( relief, labels, seeds, invert, QueueType.HEAP );
+	}
+
+	public static < L extends IntegerType< L > > void flood( final FlatRelief relief, final ArrayImg< L, ? > labels, final Seeds seeds, final boolean invert, final QueueType queueType )
+	{
+		final long[] padded = padLabels( relief, labels );
+		final int[] paddedSeeds = new int[ seeds.size() ];
+		for ( int s = 0; s < paddedSeeds.length; ++s )
+			paddedSeeds[ s ] = relief.paddedIndex( ( int ) seeds.index( s ) );
+		flood( relief, padded, paddedSeeds, paddedSeeds.length, invert, queueType );
+		unpadLabels( relief, padded, labels );
+	}
+
+	/**
+	 * Flood sub-blocks of {@code subBlockSize} in parallel on {@code threads}
+	 * threads, from the seed labels in {@code labels}. Each sub-block is
+	 * flooded over the sub-block expanded by {@code halo} (within the block)
+	 * from all seeds in that region (in flat order), and keeps the labels of
+	 * its own voxels. Seed labels are unique within the block, so sub-blocks
+	 * agree on labels and the result equals sequential flooding wherever the
+	 * flooding order is decided within the halo. Voxels that no seed reaches
+	 * within the halo of their sub-block are reconciled in a final sequential
+	 * flood from all labeled voxels that border them.
+	 */
+	public static < L extends IntegerType< L > > void floodParallel(
+			final FlatRelief relief,
+			final ArrayImg< L, ? > labels,
+			final boolean invert,
+			final QueueType queueType,
+			final int[] subBlockSize,
+			final int halo,
+			final int threads ) throws InterruptedException, ExecutionException
+	{
+		final long[] dimensions = relief.dimensions();
+		final int nDim = dimensions.length;
+		final long[] initial = padLabels( relief, labels );
+		final long[] padded = initial.clone();
+
+		final long[] numSubBlocks = new long[ nDim ];
+		Arrays.setAll( numSubBlocks, d -> ( dimensions[ d ] + subBlockSize[ d ] - 1 ) / subBlockSize[ d ] );
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		final long[] subBlock = new long[ nDim ];
+		for ( long i = 0; i < Intervals.numElements( numSubBlocks ); ++i )
+		{
+			IntervalIndexer.indexToPosition( i, numSubBlocks, subBlock );
+			final long[] coreMin = new long[ nDim ];
+			final long[] coreMax = new long[ nDim ];
+			final long[] regionMin = new long[ nDim ];
+			final long[] regionDimensions = new long[ nDim ];
+			for ( int d = 0; d < nDim; ++d )
+			{
+				coreMin[ d ] = subBlock[ d ] * subBlockSize[ d ];
+				coreMax[ d ] = Math.min( coreMin[ d ] + subBlockSize[ d ], dimensions[ d ] ) - 1;
+				regionMin[ d ] = Math.max( coreMin[ d ] - halo, 0 );
+				regionDimensions[ d ] = Math.min( coreMax[ d ] + halo, dimensions[ d ] - 1 ) - regionMin[ d ] + 1;
+			}
+			tasks.add( () -> {
+				floodSubBlock( relief, initial, padded, coreMin, coreMax, regionMin, regionDimensions, invert, queueType );
+				return null;
+			} );
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool( threads );
+		try
+		{
+			for ( final Future< Void > f : pool.invokeAll( tasks ) )
+				f.get();
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		// reconcile voxels not reached within the halo
+		final int[] offsets = relief.faceNeighborOffsets();
+		int[] boundary = new int[ 16 ];
+		int numBoundary = 0;
+		for ( final FlatRelief.CoreCursor c = relief.coreCursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final int index = c.paddedIndex();
+			if ( padded[ index ] != 0 )
+				for ( final int offset : offsets )
+					if ( padded[ index + offset ] == 0 )
+					{
+						if ( numBoundary == boundary.length )
+							boundary = Arrays.copyOf( boundary, 2 * numBoundary );
+						boundary[ numBoundary++ ] = index;
+						break;
+					}
+		}
+		if ( numBoundary > 0 )
+		{
+			LOG.debug( "Reconciling sub-blocks from {} boundary voxels.", numBoundary );
+			flood( relief, padded, boundary, numBoundary, invert, queueType );
+		}
+
+		unpadLabels( relief, padded, labels );
+	}
+
+	/**
+	 * Flood the region of a sub-block on a cropped copy of relief and initial
+	 * labels and copy the core of the sub-block into {@code result}.
+	 */
+	private static void floodSubBlock(
+			final FlatRelief relief,
+			final long[] initial,
+			final long[] result,
+			final long[] coreMin,
+			final long[] coreMax,
+			final long[] regionMin,
+			final long[] regionDimensions,
+			final boolean invert,
+			final QueueType queueType )
+	{
+		final FlatRelief region = relief.crop( regionMin, regionDimensions );
+		final long[] padded = new long[ region.paddedSize() ];
+		Arrays.fill( padded, BORDER );
+		final int nDim = regionMin.length;
+		final long[] blockPosition = new long[ nDim ];
+		int[] seeds = new int[ 16 ];
+		int numSeeds = 0;
+		for ( final FlatRelief.CoreCursor c = region.coreCursor(); c.hasNext(); )
+		{
+			c.fwd();
+			for ( int d = 0; d < nDim; ++d )
+				blockPosition[ d ] = regionMin[ d ] + c.position( d );
+			final long label = initial[ relief.paddedIndex( blockPosition ) ];
+			padded[ c.paddedIndex() ] = label;
+			if ( label != 0 )
+			{
+				if ( numSeeds == seeds.length )
+					seeds = Arrays.copyOf( seeds, 2 * numSeeds );
+				seeds[ numSeeds++ ] = c.paddedIndex();
+			}
+		}
+
+		flood( region, padded, seeds, numSeeds, invert, queueType );
+
+		for ( final FlatRelief.CoreCursor c = region.coreCursor(); c.hasNext(); )
+		{
+			c.fwd();
+			boolean isCore = true;
+			for ( int d = 0; d < nDim; ++d )
+			{
+				blockPosition[ d ] = regionMin[ d ] + c.position( d );
+				isCore &= blockPosition[ d ] >= coreMin[ d ] && blockPosition[ d ] <= coreMax[ d ];
+			}
+			if ( isCore )
+				result[ relief.paddedIndex( blockPosition ) ] = padded[ c.paddedIndex() ];
+		}
+	}
+
+	/**
+	 * Flood {@code padded} from the first {@code numSeeds} (padded) indices
+	 * in {@code seeds}.
+	 */
+	private static void flood( final FlatRelief relief, final long[] padded, final int[] seeds, final int numSeeds, final boolean invert, final QueueType queueType )
+	{
+		final int[] offsets = relief.faceNeighborOffsets();
+		final double sign = invert ? -1.0 : 1.0;
+		final int capacity = Math.max( numSeeds * offsets.length, 16 );
+		final Queue queue;
+		if ( queueType == QueueType.HEAP )
+			queue = new Heap( capacity );
+		else if ( queueType == QueueType.RADIX )
+			queue = new RadixHeap( capacity );
+		else
+			throw new IllegalArgumentException( "Queue type " + queueType + " is not array based." );
+		for ( int s = 0; s < numSeeds; ++s )
+			enqueueNeighbors( relief, padded, offsets, sign, queue, seeds[ s ], padded[ seeds[ s ] ] );
+
+		while ( !queue.isEmpty() )
+		{
+			final int index = queue.pop();
+			final long label = queue.label();
+			if ( padded[ index ] == 0 )
+			{
+				padded[ index ] = label;
+				enqueueNeighbors( relief, padded, offsets, sign, queue, index, label );
+			}
+		}
+	}
+
+	private static < L extends IntegerType< L > > long[] padLabels( final FlatRelief relief, final ArrayImg< L, ? > labels )
+	{
+		final long[] padded = new long[ relief.paddedSize() ];
+		Arrays.fill( padded, BORDER );
+		final Cursor< L > in = Views.flatIterable( labels ).cursor();
+		for ( final FlatRelief.CoreCursor c = relief.coreCursor(); c.hasNext(); )
+		{
+			c.fwd();
+			padded[ c.paddedIndex() ] = in.next().getIntegerLong();
+		}
+		return padded;
+	}
+
+	private static < L extends IntegerType< L > > void unpadLabels( final FlatRelief relief, final long[] padded, final ArrayImg< L, ? > labels )
+	{
+		final Cursor< L > out = Views.flatIterable( labels ).cursor();
+		for ( final FlatRelief.CoreCursor c = relief.coreCursor(); c.hasNext(); )
+		{
+			c.fwd();
+			out.next().setInteger( padded[ c.paddedIndex() ] );
+		}
+	}
+
+	private static void enqueueNeighbors(
+			final FlatRelief relief,
+			final long[] padded,
+			final int[] offsets,
+			final double sign,
+			final Queue queue,
+			final int index,
+			final long label )
+	{
+		for ( final int offset : offsets )
+		{
+			final int neighbor = index + offset;
+			if ( padded[ neighbor ] == 0 )
+			{
+				final double priority = sign * relief.get( neighbor );
+				queue.add( Double.isNaN( priority ) ? Double.POSITIVE_INFINITY : priority, neighbor, label );
+			}
+		}
+	}
+
+	private interface Queue
+	{
+		public void add( double priority, int voxel, long label );
+
+		public boolean isEmpty();
+
+		/**
+		 * Remove the entry with smallest priority.
+		 *
+		 * @return voxel of the removed entry
+		 */
+		public int pop();
+
+		/**
+		 * @return label of the entry last removed by {@link #pop()}
+		 */
+		public long label();
+	}
+
+	/**
+	 * Binary min heap of {@code (priority, voxel, label)} over parallel
+	 * primitive arrays, ties broken by insertion order.
+	 */
+	private static class Heap implements Queue
+	{
+
+		private double[] priorities;
+
+		private long[] sequence;
+
+		private int[] voxels;
+
+		private long[] labels;
+
+		private int size = 0;
+
+		private long next = 0;
+
+		private long label;
+
+		public Heap( final int capacity )
+		{
+			this.priorities = new double[ capacity ];
+			this.sequence = new long[ capacity ];
+			this.voxels = new int[ capacity ];
+			this.labels = new long[ capacity ];
+		}
+
+		@Override
+		public boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		@Override
+		public long label()
+		{
+			return label;
+		}
+
+		@Override
+		public void add( final double priority, final int voxel, final long label )
+		{
+			if ( size == priorities.length )
+				grow();
+			int i = size++;
+			final long seq = next++;
+			while ( i > 0 )
+			{
+				final int parent = ( i - 1 ) >>> 1;
+				if ( !less( priority, seq, priorities[ parent ], sequence[ parent ] ) )
+					break;
+				move( parent, i );
+				i = parent;
+			}
+			set( i, priority, seq, voxel, label );
+		}
+
+		@Override
+		public int pop()
+		{
+			final int top = voxels[ 0 ];
+			label = labels[ 0 ];
+			--size;
+			if ( size > 0 )
+			{
+				final double priority = priorities[ size ];
+				final long seq = sequence[ size ];
+				final int voxel = voxels[ size ];
+				final long label = labels[ size ];
+				int i = 0;
+				for ( int child = 1; child < size; child = 2 * i + 1 )
+				{
+					if ( child + 1 < size && less( priorities[ child + 1 ], sequence[ child + 1 ], priorities[ child ], sequence[ child ] ) )
+						++child;
+					if ( !less( priorities[ child ], sequence[ child ], priority, seq ) )
+						break;
+					move( child, i );
+					i = child;
+				}
+				set( i, priority, seq, voxel, label );
+			}
+			return top;
+		}
+
+		private static boolean less( final double p1, final long s1, final double p2, final long s2 )
+		{
+			return p1 < p2 || p1 == p2 && s1 < s2;
+		}
+
+		private void move( final int from, final int to )
+		{
+			set( to, priorities[ from ], sequence[ from ], voxels[ from ], labels[ from ] );
+		}
+
+		private void set( final int i, final double priority, final long seq, final int voxel, final long label )
+		{
+			priorities[ i ] = priority;
+			sequence[ i ] = seq;
+			voxels[ i ] = voxel;
+			labels[ i ] = label;
+		}
+
+		private void grow()
+		{
+			final int capacity = 2 * priorities.length;
+			priorities = Arrays.copyOf( priorities, capacity );
+			sequence = Arrays.copyOf( sequence, capacity );
+			voxels = Arrays.copyOf( voxels, capacity );
+			labels = Arrays.copyOf( labels, capacity );
+		}
+
+	}
+
+	/**
+	 * Radix heap of {@code (priority, voxel, label)}. Priorities are mapped to
+	 * unsigned longs that preserve their order. Bucket {@code 0} holds entries
+	 * with the key of the last minimum, bucket {@code b > 0} holds entries whose
+	 * key differs from the last minimum in bit {@code b - 1} as the highest
+	 * bit. Popping from an empty bucket {@code 0} redistributes the lowest
+	 * non-empty bucket around its minimum, which moves every entry at most
+	 * {@code 64} times. Equal keys always share a bucket and keep their
+	 * insertion order, bucket {@code 0} is popped first in first out.
+	 *
+	 * Flooding is not monotone where a basin has no seed (e.g. non-strict
+	 * minima, minima on the block border or with threshold seeds): voxels of
+	 * such a basin are enqueued below the last minimum. These entries go to a
+	 * {@link Heap} that is emptied before the radix buckets, so that the queue
+	 * stays exact and pops the same entries in the same order as {@link Heap}.
+	 */
+	private static class RadixHeap implements Queue
+	{
+
+		private static final int NUM_BUCKETS = 65;
+
+		private final long[][] keys = new long[ NUM_BUCKETS ][];
+
+		private final int[][] voxels = new int[ NUM_BUCKETS ][];
+
+		private final long[][] labels = new long[ NUM_BUCKETS ][];
+
+		private final int[] sizes = new int[ NUM_BUCKETS ];
+
+		/**
+		 * First entry of bucket {@code 0} that has not been popped.
+		 */
+		private int head = 0;
+
+		/**
+		 * Entries with keys below {@link #last}.
+		 */
+		private final Heap below = new Heap( 16 );
+
+		private long last = 0;
+
+		private int size = 0;
+
+		private long label;
+
+		public RadixHeap( final int capacity )
+		{
+			for ( int b = 0; b < NUM_BUCKETS; ++b )
+			{
+				final int c = b == 0 ? capacity : 16;
+				keys[ b ] = new long[ c ];
+				voxels[ b ] = new int[ c ];
+				labels[ b ] = new long[ c ];
+			}
+		}
+
+		@Override
+		public void add( final double priority, final int voxel, final long label )
+		{
+			// -0.0 and 0.0 are equal priorities
+			final double p = priority + 0.0;
+			final long key = sortableBits( p );
+			if ( Long.compareUnsigned( key, last ) < 0 )
+				below.add( p, voxel, label );
+			else
+			{
+				append( key, voxel, label );
+				++size;
+			}
+		}
+
+		@Override
+		public boolean isEmpty()
+		{
+			return size == 0 && below.isEmpty();
+		}
+
+		@Override
+		public int pop()
+		{
+			if ( !below.isEmpty() )
+			{
+				final int voxel = below.pop();
+				label = below.label();
+				return voxel;
+			}
+
+			if ( head == sizes[ 0 ] )
+			{
+				head = 0;
+				sizes[ 0 ] = 0;
+				int b = 1;
+				while ( sizes[ b ] == 0 )
+					++b;
+				final long[] bucketKeys = keys[ b ];
+				final int[] bucketVoxels = voxels[ b ];
+				final long[] bucketLabels = labels[ b ];
+				final int bucketSize = sizes[ b ];
+				long min = bucketKeys[ 0 ];
+				for ( int i = 1; i < bucketSize; ++i )
+					if ( Long.compareUnsigned( bucketKeys[ i ], min ) < 0 )
+						min = bucketKeys[ i ];
+				last = min;
+				sizes[ b ] = 0;
+				// all entries go to buckets below b, in order
+				for ( int i = 0; i < bucketSize; ++i )
+					append( bucketKeys[ i ], bucketVoxels[ i ], bucketLabels[ i ] );
+			}
+			final int i = head++;
+			--size;
+			label = labels[ 0 ][ i ];
+			return voxels[ 0 ][ i ];
+		}
+
+		@Override
+		public long label()
+		{
+			return label;
+		}
+
+		private void append( final long key, final int voxel, final long label )
+		{
+			final int b = key == last ? 0 : 64 - Long.numberOfLeadingZeros( key ^ last );
+			final int i = sizes[ b ]++;
+			if ( i == keys[ b ].length )
+			{
+				keys[ b ] = Arrays.copyOf( keys[ b ], 2 * i );
+				voxels[ b ] = Arrays.copyOf( voxels[ b ], 2 * i );
+				labels[ b ] = Arrays.copyOf( labels[ b ], 2 * i );
+			}
+			keys[ b ][ i ] = key;
+			voxels[ b ][ i ] = voxel;
+			labels[ b ][ i ] = label;
+		}
+
+		/**
+		 * Map {@code value} to bits that compare (unsigned) like the value.
+		 */
+		private static long sortableBits( final double value )
+		{
+			final long bits = Double.doubleToRawLongBits( value );
+			return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+		}
+
+	}
+
+}
@@ -0,0 +1,309 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Contiguous copy of a relief block (core), padded by one voxel on each side,
+ * with precomputed offsets of all {@code 3^n - 1} neighbors in the padded
+ * array. Read in a single traversal of the relief, all further neighborhood
+ * access runs on the flat array.
+ */
+public class FlatRelief
+{
+
+	public static final int NO_EXTREMUM = 0;
+
+	public static final int STRICT_EXTREMUM = 1;
+
+	public static final int PLATEAU = 2;
+
+	private final long[] dimensions;
+
+	private final int[] paddedStrides;
+
+	private final double[] values;
+
+	private final int[] neighborOffsets;
+
+	private FlatRelief( final long[] dimensions, final double[] values )
+	{
+		super();
+		final int nDim = dimensions.length;
+		this.dimensions = dimensions;
+		this.values = values;
+		this.paddedStrides = new int[ nDim ];
+		for ( int d = 0, stride = 1; d < nDim; ++d )
+		{
+			paddedStrides[ d ] = stride;
+			stride *= dimensions[ d ] + 2;
+		}
+
+		// offsets of 3^n neighborhood without center
+		int numNeighbors = 1;
+		for ( int d = 0; d < nDim; ++d )
+			numNeighbors *= 3;
+		this.neighborOffsets = new int[ numNeighbors - 1 ];
+		final int[] step = new int[ nDim ];
+		Arrays.fill( step, -1 );
+		for ( int n = 0, k = 0; n < numNeighbors; ++n )
+		{
+			int offset = 0;
+			boolean isCenter = true;
+			for ( int d = 0; d < nDim; ++d )
+			{
+				offset += step[ d ] * paddedStrides[ d ];
+				isCenter &= step[ d ] == 0;
+			}
+			if ( !isCenter )
+				neighborOffsets[ k++ ] = offset;
+			for ( int d = 0; d < nDim && ++step[ d ] > 1; ++d )
+				step[ d ] = -1;
+		}
+	}
+
+	/**
+	 * Copy {@code relief} over {@code core} expanded by one voxel.
+	 */
+	public static < T extends RealType< T > > FlatRelief copy( final RandomAccessible< T > relief, final Interval core )
+	{
+		final Interval padded = Intervals.expand( core, 1 );
+		final double[] values = new double[ ( int ) Intervals.numElements( padded ) ];
+		final Cursor< T > c = Views.flatIterable( Views.interval( relief, padded ) ).cursor();
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = c.next().getRealDouble();
+		return new FlatRelief( Intervals.dimensionsAsLongArray( core ), values );
+	}
+
+	/**
+	 * Copy the part of the core with minimum {@code min} and
+	 * {@code dimensions} (both relative to the core), padded by one voxel from
+	 * this relief.
+	 */
+	public FlatRelief crop( final long[] min, final long[] dimensions )
+	{
+		final int nDim = dimensions.length;
+		final long[] paddedDimensions = new long[ nDim ];
+		Arrays.setAll( paddedDimensions, d -> dimensions[ d ] + 2 );
+		final double[] values = new double[ ( int ) Intervals.numElements( paddedDimensions ) ];
+		final long[] position = new long[ nDim ];
+		for ( int i = 0; i < values.length; ++i )
+		{
+			// padded coordinates of this relief are core coordinates + 1
+			int source = 0;
+			for ( int d = 0; d < nDim; ++d )
+				source += ( int ) ( min[ d ] + position[ d ] ) * paddedStrides[ d ];
+			values[ i ] = this.values[ source ];
+			for ( int d = 0; d < nDim && ++position[ d ] == paddedDimensions[ d ]; ++d )
+				position[ d ] = 0;
+		}
+		return new FlatRelief( dimensions.clone(), values );
+	}
+
+	public long[] dimensions()
+	{
+		return dimensions.clone();
+	}
+
+	public double get( final int paddedIndex )
+	{
+		return values[ paddedIndex ];
+	}
+
+	/**
+	 * Strict local extremum check in the full {@code 3^n} neighborhood, same
+	 * as {@link net.imglib2.algorithm.localextrema.LocalExtrema.MinimumCheck}
+	 * and {@link net.imglib2.algorithm.localextrema.LocalExtrema.MaximumCheck}
+	 * without peak threshold.
+	 */
+	public boolean isExtremum( final int paddedIndex, final boolean findMaxima )
+	{
+		return classify( paddedIndex, findMaxima ) == STRICT_EXTREMUM;
+	}
+
+	/**
+	 *
+	 * @return {@link #STRICT_EXTREMUM} if all neighbors are strictly greater
+	 *         (smaller for maxima), {@link #PLATEAU} if all neighbors are
+	 *         greater (smaller) or equal and at least one is equal,
+	 *         {@link #NO_EXTREMUM} otherwise
+	 */
+	public int classify( final int paddedIndex, final boolean findMaxima )
+	{
+		final double v = values[ paddedIndex ];
+		if ( Double.isNaN( v ) )
+			return NO_EXTREMUM;
+		int result = STRICT_EXTREMUM;
+		if ( findMaxima )
+		{
+			for ( final int offset : neighborOffsets )
+			{
+				final double n = values[ paddedIndex + offset ];
+				if ( n == v )
+					result = PLATEAU;
+				else if ( !( n < v ) )
+					return NO_EXTREMUM;
+			}
+		}
+		else
+			for ( final int offset : neighborOffsets )
+			{
+				final double n = values[ paddedIndex + offset ];
+				if ( n == v )
+					result = PLATEAU;
+				else if ( !( n > v ) )
+					return NO_EXTREMUM;
+			}
+		return result;
+	}
+
+	/**
+	 * @return offsets of the {@code 2n} face neighbors in the padded array
+	 */
+	public int[] faceNeighborOffsets()
+	{
+		final int[] offsets = new int[ 2 * paddedStrides.length ];
+		for ( int d = 0; d < paddedStrides.length; ++d )
+		{
+			offsets[ 2 * d ] = -paddedStrides[ d ];
+			offsets[ 2 * d + 1 ] = paddedStrides[ d ];
+		}
+		return offsets;
+	}
+
+	/**
+	 * @return number of voxels including padding
+	 */
+	public int paddedSize()
+	{
+		return values.length;
+	}
+
+	/**
+	 * @return index into the padded array for {@code coreIndex}
+	 */
+	public int paddedIndex( final int coreIndex )
+	{
+		int paddedIndex = 0;
+		for ( int d = 0, remainder = coreIndex; d < dimensions.length; ++d )
+		{
+			paddedIndex += ( int ) ( remainder % dimensions[ d ] + 1 ) * paddedStrides[ d ];
+			remainder /= dimensions[ d ];
+		}
+		return paddedIndex;
+	}
+
+	/**
+	 * @return index into the padded array for {@code position} in the core
+	 */
+	public int paddedIndex( final long[] position )
+	{
+		int paddedIndex = 0;
+		for ( int d = 0; d < dimensions.length; ++d )
+			paddedIndex += ( int ) ( position[ d ] + 1 ) * paddedStrides[ d ];
+		return paddedIndex;
+	}
+
+	public int numNeighbors()
+	{
+		return neighborOffsets.length;
+	}
+
+	/**
+	 * @return offset of the {@code k}th neighbor in the padded array
+	 */
+	public int neighborOffset( final int k )
+	{
+		return neighborOffsets[ k ];
+	}
+
+	/**
+	 * @return index into the core for {@code paddedIndex}, or {@code -1} if
+	 *         {@code paddedIndex} lies in the padding
+	 */
+	public int coreIndex( final int paddedIndex )
+	{
+		int coreIndex = 0;
+		for ( int d = dimensions.length - 1, remainder = paddedIndex; d >= 0; --d )
+		{
+			final long p = remainder / paddedStrides[ d ] - 1;
+			if ( p < 0 || p >= dimensions[ d ] )
+				return -1;
+			remainder %= paddedStrides[ d ];
+			coreIndex = ( int ) ( coreIndex * dimensions[ d ] + p );
+		}
+		return coreIndex;
+	}
+
+	public CoreCursor coreCursor()
+	{
+		return new CoreCursor();
+	}
+
+	/**
+	 * Visit all voxels of the core in flat iteration order, tracking index
+	 * into the core, index into the padded array, and position.
+	 */
+	public class CoreCursor
+	{
+
+		private final long[] position = new long[ dimensions.length ];
+
+		private final long numElements = Intervals.numElements( dimensions );
+
+		private int index = -1;
+
+		private int paddedIndex;
+
+		private CoreCursor()
+		{
+			position[ 0 ] = -1;
+			int first = 0;
+			for ( int d = 0; d < paddedStrides.length; ++d )
+				first += paddedStrides[ d ];
+			paddedIndex = first - 1;
+		}
+
+		public boolean hasNext()
+		{
+			return index + 1 < numElements;
+		}
+
+		public void fwd()
+		{
+			++index;
+			++paddedIndex;
+			if ( ++position[ 0 ] < dimensions[ 0 ] )
+				return;
+			for ( int d = 0; d < dimensions.length - 1 && position[ d ] == dimensions[ d ]; ++d )
+			{
+				position[ d ] = 0;
+				++position[ d + 1 ];
+				paddedIndex += 2 * paddedStrides[ d ];
+			}
+		}
+
+		public int index()
+		{
+			return index;
+		}
+
+		public int paddedIndex()
+		{
+			return paddedIndex;
+		}
+
+		public long position( final int d )
+		{
+			return position[ d ];
+		}
+
+	}
+
+}
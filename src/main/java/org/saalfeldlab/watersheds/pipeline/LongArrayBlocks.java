@@ -0,0 +1,171 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.GenericLongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.Views;
+
+/**
+ * Read an interval of a label block into a flat {@code long[]} (in flat
+ * iteration order, as stored in a {@code LongArrayDataBlock}). If the block is
+ * an {@link ArrayImg} of a {@link GenericLongType} backed by a
+ * {@link LongArray}, or a translated view of one (e.g. through
+ * {@link Translate} or {@link Widen} without label offset), runs of voxels
+ * that are contiguous in the backing array are copied with
+ * {@link System#arraycopy}, one run per row or per slab of full rows. Other
+ * blocks are copied through a cursor.
+ */
+public class LongArrayBlocks
+{
+
+	/**
+	 *
+	 * @return voxels of {@code interval} of {@code source}, the backing array
+	 *         of {@code source} itself if {@code interval} covers all of it.
+	 *         The result must not be modified unless {@code source} is not
+	 *         used anymore.
+	 */
+	public static < T extends IntegerType< T > > long[] data( final RandomAccessibleInterval< T > source, final Interval interval )
+	{
+		return data( source, interval, true );
+	}
+
+	/**
+	 *
+	 * @return new array with the voxels of {@code interval} of {@code source}
+	 */
+	public static < T extends IntegerType< T > > long[] copy( final RandomAccessibleInterval< T > source, final Interval interval )
+	{
+		return data( source, interval, false );
+	}
+
+	private static < T extends IntegerType< T > > long[] data( final RandomAccessibleInterval< T > source, final Interval interval, final boolean share )
+	{
+		final int nDim = interval.numDimensions();
+		final long[] translation = new long[ nDim ];
+		final ArrayImg< ?, ? > img = backingImg( source, translation );
+		if ( img != null )
+		{
+			final long[] min = new long[ nDim ];
+			final long[] max = new long[ nDim ];
+			boolean isContained = true;
+			for ( int d = 0; d < nDim; ++d )
+			{
+				min[ d ] = interval.min( d ) + translation[ d ];
+				max[ d ] = interval.max( d ) + translation[ d ];
+				isContained &= min[ d ] >= 0 && max[ d ] < img.dimension( d );
+			}
+			if ( isContained )
+				return copyRuns( ( ( LongArray ) img.update( null ) ).getCurrentStorageArray(), Intervals.dimensionsAsLongArray( img ), min, max, share );
+		}
+
+		final long[] data = new long[ ( int ) Intervals.numElements( interval ) ];
+		final Cursor< T > c = Views.flatIterable( Views.interval( source, interval ) ).cursor();
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = c.next().getIntegerLong();
+		return data;
+	}
+
+	/**
+	 * Unwrap interval views and translations down to an {@link ArrayImg} of
+	 * {@link GenericLongType} backed by {@link LongArray}.
+	 *
+	 * @param translation
+	 *            accumulates {@code source position - view position}
+	 * @return backing image or {@code null} if there is none
+	 */
+	private static ArrayImg< ?, ? > backingImg( final RandomAccessible< ? > view, final long[] translation )
+	{
+		final int nDim = translation.length;
+		RandomAccessible< ? > source = view;
+		while ( true )
+		{
+			if ( source instanceof IntervalView )
+				source = ( ( IntervalView< ? > ) source ).getSource();
+			else if ( source instanceof MixedTransformView )
+			{
+				final MixedTransformView< ? > transformView = ( MixedTransformView< ? > ) source;
+				final MixedTransform transform = transformView.getTransformToSource();
+				if ( transform.numSourceDimensions() != nDim || transform.numTargetDimensions() != nDim )
+					return null;
+				for ( int d = 0; d < nDim; ++d )
+					if ( transform.getComponentZero( d ) || transform.getComponentMapping( d ) != d || transform.getComponentInversion( d ) )
+						return null;
+				for ( int d = 0; d < nDim; ++d )
+					translation[ d ] += transform.getTranslation( d );
+				source = transformView.getSource();
+			}
+			else
+				break;
+		}
+
+		if ( !( source instanceof ArrayImg ) )
+			return null;
+		final ArrayImg< ?, ? > img = ( ArrayImg< ?, ? > ) source;
+		return img.numDimensions() == nDim && img.firstElement() instanceof GenericLongType && img.update( null ) instanceof LongArray ? img : null;
+	}
+
+	/**
+	 * Copy {@code [min, max]} of an array with {@code dimensions} in runs of
+	 * contiguous voxels: leading dimensions that are covered completely are
+	 * merged with the first dimension that is not.
+	 */
+	private static long[] copyRuns( final long[] source, final long[] dimensions, final long[] min, final long[] max, final boolean share )
+	{
+		final int nDim = dimensions.length;
+		int k = 0;
+		int runLength = 1;
+		for ( ; k < nDim; ++k )
+		{
+			runLength *= ( int ) ( max[ k ] - min[ k ] + 1 );
+			if ( min[ k ] != 0 || max[ k ] != dimensions[ k ] - 1 )
+				break;
+		}
+
+		// all dimensions covered: no copy needed
+		if ( k == nDim && share )
+			return source;
+
+		long numElements = 1;
+		for ( int d = 0; d < nDim; ++d )
+			numElements *= max[ d ] - min[ d ] + 1;
+		final long[] target = new long[ ( int ) numElements ];
+		if ( k >= nDim - 1 )
+		{
+			System.arraycopy( source, index( min, dimensions ), target, 0, target.length );
+			return target;
+		}
+
+		// iterate over remaining dimensions k + 1, ..., nDim - 1
+		final long[] position = min.clone();
+		for ( int targetIndex = 0; targetIndex < target.length; targetIndex += runLength )
+		{
+			System.arraycopy( source, index( position, dimensions ), target, targetIndex, runLength );
+			for ( int d = k + 1; d < nDim; ++d )
+			{
+				if ( ++position[ d ] <= max[ d ] )
+					break;
+				position[ d ] = min[ d ];
+			}
+		}
+		return target;
+	}
+
+	private static int index( final long[] position, final long[] dimensions )
+	{
+		long index = 0;
+		for ( int d = dimensions.length - 1; d >= 0; --d )
+			index = index * dimensions[ d ] + position[ d ];
+		return ( int ) index;
+	}
+
+}
@@ -8,25 +8,27 @@ import java.util.function.Supplier;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.Function;
 import org.apache.spark.broadcast.Broadcast;
-import org.saalfeldlab.watersheds.UnionFindSparse;
+import org.saalfeldlab.watersheds.UnionFindDense;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.util.concurrent.MoreExecutors;
 
-import gnu.trove.iterator.TLongLongIterator;
-import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.list.array.TLongArrayList;
 import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.algorithm.localextrema.LocalExtrema;
 import net.imglib2.algorithm.localextrema.LocalExtrema.LocalNeighborhoodCheck;
 import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 import scala.Tuple2;
@@ -37,22 +39,55 @@ public class MakeSeeds
 
 	private static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
 
-	public static < T extends RealType< T > > ExtremaAndThreshold< T > localExtremaAndThreshold(
-			final Broadcast< LocalExtrema.LocalNeighborhoodCheck< Point, T > > extremumCheck,
+	/**
+	 * Write seed labels {@code labelOffset + 1, labelOffset + 2, ...} into an
+	 * empty label block and return the flat indices of all seed voxels and
+	 * the number of labels.
+	 */
+	public interface SeedGenerator< L extends IntegerType< L > > extends Function< Tuple2< ArrayImg< L, ? >, long[] >, Tuple3< ArrayImg< L, ? >, long[], Seeds > >
+	{
+		public Tuple3< ArrayImg< L, ? >, long[], Seeds > call( Tuple2< ArrayImg< L, ? >, long[] > dataAndOffset, long labelOffset ) throws Exception;
+
+		/**
+		 * Count the seed labels that {@link #call(Tuple2, long)} would
+		 * generate for a label block covering {@code block}, without a label
+		 * block, seed indices or histogram.
+		 */
+		public long count( Interval block ) throws Exception;
+
+		@Override
+		public default Tuple3< ArrayImg< L, ? >, long[], Seeds > call( final Tuple2< ArrayImg< L, ? >, long[] > dataAndOffset ) throws Exception
+		{
+			return call( dataAndOffset, 0 );
+		}
+	}
+
+	/**
+	 *
+	 * @param findMaxima
+	 *            seed at local maxima if {@code true}, at local minima
+	 *            otherwise
+	 * @param histogramBins
+	 *            attach a {@link ReliefHistogram} with this many bins to the
+	 *            seeds if positive
+	 */
+	public static < T extends RealType< T >, L extends IntegerType< L > > ExtremaAndThreshold< T, L > localExtremaAndThreshold(
+			final boolean findMaxima,
 			final Broadcast< Predicate< T > > threshold,
+			final int histogramBins,
 			final Broadcast< Supplier< RandomAccessible< T > > > relief )
 	{
-		return new ExtremaAndThreshold<>( extremumCheck, threshold, relief );
+		return new ExtremaAndThreshold<>( findMaxima, threshold, histogramBins, relief );
 	}
 
-	public static < T extends Comparable< T > > Extrema< T > localExtrema(
+	public static < T extends Comparable< T >, L extends IntegerType< L > > Extrema< T, L > localExtrema(
 			final Broadcast< LocalExtrema.LocalNeighborhoodCheck< Point, T > > extremumCheck,
 			final Broadcast< Supplier< RandomAccessible< T > > > relief )
 	{
 		return new Extrema<>( extremumCheck, relief );
 	}
 
-	public static < T extends Comparable< T > > Extrema< T > localMinima(
+	public static < T extends Comparable< T >, L extends IntegerType< L > > Extrema< T, L > localMinima(
 			final JavaSparkContext sc,
 			final T maxPeakValue,
 			final Supplier< RandomAccessible< T > > relief
@@ -60,7 +95,7 @@ public class MakeSeeds
 		return localExtrema( sc.broadcast( new LocalExtrema.MinimumCheck<>( maxPeakValue ) ), sc.broadcast( relief ) );
 	}
 
-	public static < T extends Comparable< T > > Extrema< T > localMaxima(
+	public static < T extends Comparable< T >, L extends IntegerType< L > > Extrema< T, L > localMaxima(
 			final JavaSparkContext sc,
 			final T minPeakValue,
 			final Supplier< RandomAccessible< T > > relief )
@@ -68,7 +103,28 @@ public class MakeSeeds
 		return localExtrema( sc.broadcast( new LocalExtrema.MaximumCheck<>( minPeakValue ) ), sc.broadcast( relief ) );
 	}
 
-	public static class Extrema< T extends Comparable< T > > implements Function< Tuple2< ArrayImg< UnsignedLongType, ? >, long[] >, Tuple3< ArrayImg< UnsignedLongType, ? >, long[], Long > >
+	/**
+	 *
+	 * @param findMaxima
+	 *            seed at local maxima if {@code true}, at local minima
+	 *            otherwise
+	 * @param plateaus
+	 *            also seed at plateaus of equal values that are extremal as
+	 *            a whole
+	 * @param histogramBins
+	 *            attach a {@link ReliefHistogram} with this many bins to the
+	 *            seeds if positive
+	 */
+	public static < T extends RealType< T >, L extends IntegerType< L > > FlatExtrema< T, L > flatLocalExtrema(
+			final boolean findMaxima,
+			final boolean plateaus,
+			final int histogramBins,
+			final Broadcast< Supplier< RandomAccessible< T > > > relief )
+	{
+		return new FlatExtrema<>( findMaxima, plateaus, histogramBins, relief );
+	}
+
+	public static class Extrema< T extends Comparable< T >, L extends IntegerType< L > > implements SeedGenerator< L >
 	{
 
 		private final Broadcast< LocalExtrema.LocalNeighborhoodCheck< Point, T > > extremumCheck;
@@ -83,132 +139,350 @@ public class MakeSeeds
 		}
 
 		@Override
-		public Tuple3< ArrayImg< UnsignedLongType, ? >, long[], Long > call( final Tuple2< ArrayImg< UnsignedLongType, ? >, long[] > dataAndOffset ) throws Exception
+		public Tuple3< ArrayImg< L, ? >, long[], Seeds > call( final Tuple2< ArrayImg< L, ? >, long[] > dataAndOffset, final long labelOffset ) throws Exception
 		{
-			final ArrayImg< UnsignedLongType, ? > store = dataAndOffset._1();
+			final ArrayImg< L, ? > store = dataAndOffset._1();
 			final long[] offset = dataAndOffset._2();
-			final IntervalView< UnsignedLongType > labels = Views.translate( store, offset );
+			final IntervalView< L > labels = Views.translate( store, offset );
 			final RandomAccessible< T > relief = this.relief.getValue().get();
 			final ArrayList< Point > extrema = LocalExtrema.findLocalExtrema( Views.interval( relief, Intervals.expand( labels, 1 ) ), extremumCheck.getValue(), MoreExecutors.sameThreadExecutor() );
-			final RandomAccess< UnsignedLongType > ra = labels.randomAccess();
+			final RandomAccess< L > ra = labels.randomAccess();
+			final long[] dimensions = Intervals.dimensionsAsLongArray( store );
+			final long[] position = new long[ offset.length ];
+			final Seeds seeds = new Seeds( extrema.size() );
 			for ( int label = 1, index = 0; index < extrema.size(); ++index, ++label ) {
-				ra.setPosition( extrema.get( index ) );
-				ra.get().set( label );
+				final Point extremum = extrema.get( index );
+				ra.setPosition( extremum );
+				ra.get().setInteger( labelOffset + label );
+				extremum.localize( position );
+				seeds.add( IntervalIndexer.positionWithOffsetToIndex( position, dimensions, offset ) );
 			}
-			return new Tuple3<>( store, offset, Long.valueOf( extrema.size() ) );
+			seeds.sort();
+			seeds.setNumLabels( extrema.size() );
+			return new Tuple3<>( store, offset, seeds );
+		}
+
+		@Override
+		public long count( final Interval block ) throws Exception
+		{
+			return LocalExtrema.findLocalExtrema( Views.interval( relief.getValue().get(), Intervals.expand( block, 1 ) ), extremumCheck.getValue(), MoreExecutors.sameThreadExecutor() ).size();
 		}
 	}
 
-	public static class ExtremaAndThreshold< T extends RealType< T > > implements Function< Tuple2< ArrayImg< UnsignedLongType, ? >, long[] >, Tuple3< ArrayImg< UnsignedLongType, ? >, long[], Long > >
+	/**
+	 * Seeds at local extrema, found on a flat copy of the relief block with
+	 * precomputed neighbor offsets and written straight into the backing
+	 * array of the label block. Without {@code plateaus}, only strict extrema
+	 * are seeds, like in {@link Extrema}. With {@code plateaus}, each connected
+	 * set of equal values (in the {@code 3^n} neighborhood) that has no
+	 * smaller (greater for maxima) neighbor becomes a single seed label.
+	 * Plateaus are only grown within the block, the padding of one voxel is
+	 * checked but not followed.
+	 */
+	public static class FlatExtrema< T extends RealType< T >, L extends IntegerType< L > > implements SeedGenerator< L >
 	{
 
-		private final Broadcast< LocalExtrema.LocalNeighborhoodCheck< Point, T > > extremumCheck;
+		private final boolean findMaxima;
 
-		private final Broadcast< Predicate< T > > threshold;
+		private final boolean plateaus;
+
+		private final int histogramBins;
 
 		private final Broadcast< Supplier< RandomAccessible< T > > > relief;
 
-		private ExtremaAndThreshold(
-				final Broadcast< LocalNeighborhoodCheck< Point, T > > extremumCheck,
-				final Broadcast< Predicate< T > > threshold,
-				final Broadcast< Supplier< RandomAccessible< T > > > relief )
+		private FlatExtrema( final boolean findMaxima, final boolean plateaus, final int histogramBins, final Broadcast< Supplier< RandomAccessible< T > > > relief )
 		{
 			super();
-			this.extremumCheck = extremumCheck;
-			this.threshold = threshold;
+			this.findMaxima = findMaxima;
+			this.plateaus = plateaus;
+			this.histogramBins = histogramBins;
 			this.relief = relief;
 		}
 
 		@Override
-		public Tuple3< ArrayImg< UnsignedLongType, ? >, long[], Long > call( final Tuple2< ArrayImg< UnsignedLongType, ? >, long[] > dataAndOffset ) throws Exception
+		public Tuple3< ArrayImg< L, ? >, long[], Seeds > call( final Tuple2< ArrayImg< L, ? >, long[] > dataAndOffset, final long labelOffset ) throws Exception
 		{
-			final ArrayImg< UnsignedLongType, ? > store = dataAndOffset._1();
+			final ArrayImg< L, ? > store = dataAndOffset._1();
 			final long[] offset = dataAndOffset._2();
-			final RandomAccessible< T > relief = this.relief.getValue().get();
-			final IntervalView< UnsignedLongType > labels = Views.translate( store, offset );
-
-			final RandomAccess< UnsignedLongType > ra = labels.randomAccess();
-			int label = 1;
-
-			final Predicate< T > threshold = this.threshold.getValue();
-
-			final Cursor< UnsignedLongType > labelsCursor = Views.flatIterable( labels ).cursor();
-			final Cursor< T > reliefCursor = Views.flatIterable( Views.interval( relief, labels ) ).cursor();
-			for ( ; labelsCursor.hasNext(); )
+			final FlatRelief flatRelief = FlatRelief.copy( this.relief.getValue().get(), Views.translate( store, offset ) );
+
+			final int numElements = ( int ) Intervals.numElements( store );
+			final Object access = store.update( null );
+			// write straight into long storage, otherwise remember the label of
+			// each seed voxel and write seed voxels only
+			final long[] labelData = access instanceof LongArray ? ( ( LongArray ) access ).getCurrentStorageArray() : null;
+			final TLongArrayList seedLabels = labelData == null ? new TLongArrayList() : null;
+
+			final Seeds seeds = new Seeds();
+			long label = 0;
+			boolean[] visited = null;
+			int[] plateau = null;
+			boolean foundPlateau = false;
+			for ( final FlatRelief.CoreCursor c = flatRelief.coreCursor(); c.hasNext(); )
 			{
-				final UnsignedLongType l = labelsCursor.next();
-				final T r = reliefCursor.next();
-				if ( threshold.test( r ) )
+				c.fwd();
+				final int index = c.index();
+				final int extremum = flatRelief.classify( c.paddedIndex(), findMaxima );
+				if ( extremum == FlatRelief.STRICT_EXTREMUM )
 				{
-					l.set( label );
 					++label;
+					if ( labelData == null )
+						seedLabels.add( labelOffset + label );
+					else
+						labelData[ index ] = labelOffset + label;
+					seeds.add( index );
+				}
+				else if ( extremum == FlatRelief.PLATEAU && plateaus && ( visited == null || !visited[ index ] ) )
+				{
+					if ( visited == null )
+					{
+						visited = new boolean[ numElements ];
+						plateau = new int[ numElements ];
+					}
+					final int size = growPlateau( flatRelief, c.paddedIndex(), findMaxima, visited, plateau );
+					if ( size > 0 )
+					{
+						++label;
+						for ( int i = 0; i < size; ++i )
+						{
+							final int plateauIndex = flatRelief.coreIndex( plateau[ i ] );
+							if ( labelData == null )
+								seedLabels.add( labelOffset + label );
+							else
+								labelData[ plateauIndex ] = labelOffset + label;
+							seeds.add( plateauIndex );
+						}
+						foundPlateau = true;
+					}
 				}
 			}
 
-			LOG.debug( "After thresholding: {} seeds", label );
+			if ( labelData == null )
+			{
+				final RandomAccess< L > ra = store.randomAccess();
+				final long[] dimensions = Intervals.dimensionsAsLongArray( store );
+				final long[] position = new long[ dimensions.length ];
+				for ( int i = 0; i < seeds.size(); ++i )
+				{
+					IntervalIndexer.indexToPosition( seeds.index( i ), dimensions, position );
+					ra.setPosition( position );
+					ra.get().setInteger( seedLabels.get( i ) );
+				}
+			}
 
-			final TLongLongHashMap parents = new TLongLongHashMap();
-			final UnionFindSparse uf = new UnionFindSparse( parents, 0 );
+			if ( foundPlateau )
+				seeds.sort();
+			seeds.setNumLabels( label );
+			if ( histogramBins > 0 )
+				seeds.setHistogram( ReliefHistogram.of( flatRelief, findMaxima, histogramBins ) );
+			LOG.debug( "Got {} local extrema seeds ({} voxels).", label, seeds.size() );
+			return new Tuple3<>( store, offset, seeds );
+		}
 
-			final int nDim = labels.numDimensions();
-			for ( int d = 0; d < nDim; ++d )
+		@Override
+		public long count( final Interval block ) throws Exception
+		{
+			final FlatRelief flatRelief = FlatRelief.copy( this.relief.getValue().get(), block );
+			final int numElements = ( int ) Intervals.numElements( block );
+			long count = 0;
+			boolean[] visited = null;
+			int[] plateau = null;
+			for ( final FlatRelief.CoreCursor c = flatRelief.coreCursor(); c.hasNext(); )
 			{
-				final long[] min = Intervals.minAsLongArray( labels );
-				final long[] max = Intervals.maxAsLongArray( labels );
-				final long[] minPlusOne = min.clone();
-				final long[] maxMinusOne = max.clone();
-				minPlusOne[ d ] += 1;
-				maxMinusOne[ d ] -= 1;
-				final Cursor< UnsignedLongType > c1 = Views.flatIterable( Views.interval( labels, new FinalInterval( min, maxMinusOne ) ) ).cursor();
-				final Cursor< UnsignedLongType > c2 = Views.flatIterable( Views.interval( labels, new FinalInterval( minPlusOne, max ) ) ).cursor();
-				while ( c1.hasNext() )
+				c.fwd();
+				final int extremum = flatRelief.classify( c.paddedIndex(), findMaxima );
+				if ( extremum == FlatRelief.STRICT_EXTREMUM )
+					++count;
+				else if ( extremum == FlatRelief.PLATEAU && plateaus && ( visited == null || !visited[ c.index() ] ) )
 				{
-					final long v1 = c1.next().get();
-					final long v2 = c2.next().get();
-					if ( v1 != 0 && v2 != 0 )
-						uf.join( uf.findRoot( v1 ), uf.findRoot( v2 ) );
+					if ( visited == null )
+					{
+						visited = new boolean[ numElements ];
+						plateau = new int[ numElements ];
+					}
+					if ( growPlateau( flatRelief, c.paddedIndex(), findMaxima, visited, plateau ) > 0 )
+						++count;
 				}
 			}
+			return count;
+		}
 
-			LOG.debug( "Current label count {} {}", label, parents.size() );
-
-			label = 1;
-			final TLongLongHashMap mapping = new TLongLongHashMap();
-			for ( final TLongLongIterator it = parents.iterator(); it.hasNext();  ) {
-				it.advance();
-				final long k = it.key();
-				final long r = uf.findRoot( k );
-				if ( !mapping.contains( r ) )
+		/**
+		 * Collect the plateau of values equal to {@code start} (padded
+		 * indices, within the core only) into {@code plateau}.
+		 *
+		 * @return size of the plateau if it is extremal, zero otherwise
+		 */
+		private static int growPlateau( final FlatRelief relief, final int start, final boolean findMaxima, final boolean[] visited, final int[] plateau )
+		{
+			final double value = relief.get( start );
+			final int numNeighbors = relief.numNeighbors();
+			visited[ relief.coreIndex( start ) ] = true;
+			plateau[ 0 ] = start;
+			int size = 1;
+			boolean isExtremum = true;
+			for ( int head = 0; head < size; ++head )
+			{
+				final int p = plateau[ head ];
+				isExtremum &= relief.classify( p, findMaxima ) != FlatRelief.NO_EXTREMUM;
+				for ( int k = 0; k < numNeighbors; ++k )
 				{
-					mapping.put( r, label );
-					++label;
+					final int q = p + relief.neighborOffset( k );
+					if ( relief.get( q ) == value )
+					{
+						final int coreIndex = relief.coreIndex( q );
+						if ( coreIndex >= 0 && !visited[ coreIndex ] )
+						{
+							visited[ coreIndex ] = true;
+							plateau[ size++ ] = q;
+						}
+					}
 				}
-				mapping.put( k, mapping.get( r ) );
 			}
+			return isExtremum ? size : 0;
+		}
+	}
+
+	/**
+	 * Seeds are connected components (face connectivity) of all voxels that
+	 * pass {@code threshold}, and local extrema that do not pass
+	 * {@code threshold}. Threshold test, scan-line connected components with
+	 * a dense {@link UnionFindDense} and extremum check run in a single pass
+	 * over a flat copy of the relief block.
+	 */
+	public static class ExtremaAndThreshold< T extends RealType< T >, L extends IntegerType< L > > implements SeedGenerator< L >
+	{
 
-			final UnsignedLongType zero = new UnsignedLongType();
-			zero.setZero();
+		private static final int EXTREMUM = -1;
 
-			for ( final UnsignedLongType l : labels )
-				if ( !l.valueEquals( zero ) )
-					l.set( mapping.get( l.get() ) );
+		private final boolean findMaxima;
 
+		private final Broadcast< Predicate< T > > threshold;
 
-			LOG.debug( "Using extremum check class {}", extremumCheck.getValue().getClass() );
-			final ArrayList< Point > extrema = LocalExtrema.findLocalExtrema( Views.interval( relief, Intervals.expand( labels, 1 ) ), extremumCheck.getValue(), MoreExecutors.sameThreadExecutor() );
-			LOG.debug( "Got {}/{} local extrema seeds.", label, extrema.size() );
-			for ( final Point extremum : extrema )
+		private final int histogramBins;
+
+		private final Broadcast< Supplier< RandomAccessible< T > > > relief;
+
+		private ExtremaAndThreshold(
+				final boolean findMaxima,
+				final Broadcast< Predicate< T > > threshold,
+				final int histogramBins,
+				final Broadcast< Supplier< RandomAccessible< T > > > relief )
+		{
+			super();
+			this.findMaxima = findMaxima;
+			this.threshold = threshold;
+			this.histogramBins = histogramBins;
+			this.relief = relief;
+		}
+
+		@Override
+		public Tuple3< ArrayImg< L, ? >, long[], Seeds > call( final Tuple2< ArrayImg< L, ? >, long[] > dataAndOffset, final long labelOffset ) throws Exception
+		{
+			final ArrayImg< L, ? > store = dataAndOffset._1();
+			final long[] offset = dataAndOffset._2();
+			final RandomAccessible< T > relief = this.relief.getValue().get();
+			final IntervalView< L > labels = Views.translate( store, offset );
+			final Predicate< T > threshold = this.threshold.getValue();
+			final T value = Util.getTypeFromInterval( Views.interval( relief, labels ) ).createVariable();
+
+			final FlatRelief flatRelief = FlatRelief.copy( relief, labels );
+			final int[] components = new int[ ( int ) Intervals.numElements( labels ) ];
+			final UnionFindDense uf = new UnionFindDense();
+			final int numExtrema = findComponentsAndExtrema( flatRelief, labels, threshold, value, components, uf );
+
+			final int numComponents = uf.setCount();
+			LOG.debug( "Got {} connected components and {} local extrema seeds.", numComponents, numExtrema );
+
+			// components first, then extrema, both in order of first
+			// appearance
+			final int[] sets = uf.consecutiveSets();
+			final Seeds seeds = new Seeds();
+			final Cursor< L > storeCursor = Views.flatIterable( store ).cursor();
+			long extremumLabel = numComponents;
+			for ( int index = 0; index < components.length; ++index )
 			{
-				ra.setPosition( extremum );
-				final UnsignedLongType v = ra.get();
-				if ( v.valueEquals( zero ) )
+				final L l = storeCursor.next();
+				final int component = components[ index ];
+				if ( component == EXTREMUM )
 				{
-					v.set( label );
-					++label;
+					l.setInteger( labelOffset + ++extremumLabel );
+					seeds.add( index );
 				}
+				else if ( component > 0 )
+				{
+					l.setInteger( labelOffset + sets[ component - 1 ] + 1 );
+					seeds.add( index );
+				}
+			}
+			seeds.setNumLabels( extremumLabel );
+			if ( histogramBins > 0 )
+				seeds.setHistogram( ReliefHistogram.of( flatRelief, findMaxima, histogramBins ) );
+
+			return new Tuple3<>( store, offset, seeds );
+		}
+
+		@Override
+		public long count( final Interval block ) throws Exception
+		{
+			final RandomAccessible< T > relief = this.relief.getValue().get();
+			final T value = Util.getTypeFromInterval( Views.interval( relief, block ) ).createVariable();
+			final FlatRelief flatRelief = FlatRelief.copy( relief, block );
+			final int[] components = new int[ ( int ) Intervals.numElements( block ) ];
+			final UnionFindDense uf = new UnionFindDense();
+			final int numExtrema = findComponentsAndExtrema( flatRelief, block, this.threshold.getValue(), value, components, uf );
+			return uf.setCount() + numExtrema;
+		}
+
+		/**
+		 * Threshold test, scan-line connected components and extremum check
+		 * for all voxels of {@code block}. Sets {@code components} to the
+		 * provisional component id + 1 for voxels that pass the threshold,
+		 * {@code EXTREMUM} for local extrema, zero otherwise.
+		 *
+		 * @return number of local extrema
+		 */
+		private int findComponentsAndExtrema(
+				final FlatRelief flatRelief,
+				final Interval block,
+				final Predicate< T > threshold,
+				final T value,
+				final int[] components,
+				final UnionFindDense uf )
+		{
+			final int nDim = block.numDimensions();
+			final int[] strides = new int[ nDim ];
+			for ( int d = 0, stride = 1; d < nDim; ++d )
+			{
+				strides[ d ] = stride;
+				stride *= block.dimension( d );
 			}
 
-			return new Tuple3<>( store, offset, Long.valueOf( label + 1 ) );
+			int numExtrema = 0;
+			for ( final FlatRelief.CoreCursor c = flatRelief.coreCursor(); c.hasNext(); )
+			{
+				c.fwd();
+				final int index = c.index();
+				value.setReal( flatRelief.get( c.paddedIndex() ) );
+				if ( threshold.test( value ) )
+				{
+					int component = -1;
+					for ( int d = 0; d < nDim; ++d )
+						if ( c.position( d ) > 0 )
+						{
+							final int neighbor = components[ index - strides[ d ] ] - 1;
+							if ( neighbor >= 0 )
+								component = component < 0 ? uf.findRoot( neighbor ) : uf.join( component, neighbor );
+						}
+					components[ index ] = ( component < 0 ? uf.add() : component ) + 1;
+				}
+				else if ( flatRelief.isExtremum( c.paddedIndex(), findMaxima ) )
+				{
+					components[ index ] = EXTREMUM;
+					++numExtrema;
+				}
+			}
+			return numExtrema;
 		}
 	}
 
@@ -0,0 +1,48 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+/**
+ * Priority queues for flooding. {@link #HIERARCHICAL} and {@link #FASTUTIL}
+ * are imglib2 queues used with the generic flood on views, {@link #HEAP} and
+ * {@link #RADIX} are used by {@link FlatFlood}. Relief blocks are always of a
+ * {@code RealType} that {@link FlatFlood} accepts, so array based queues do
+ * not need a {@code PriorityQueueFactory} for the generic flood.
+ */
+public enum QueueType
+{
+	/**
+	 * Quantized hierarchical queue (not exact), see {@code --queue-bins}.
+	 */
+	HIERARCHICAL( false ),
+	/**
+	 * Exact heap based queue.
+	 */
+	FASTUTIL( false ),
+	/**
+	 * Experimental. Exact binary heap on primitive arrays, ties in insertion
+	 * order. Labels are not verified to match {@link #FASTUTIL} and can differ
+	 * where ties are flooded.
+	 */
+	HEAP( true ),
+	/**
+	 * Experimental. Radix heap on the bit pattern of priorities, ties in
+	 * insertion order.
+	 * Priorities below the last popped one (basins without a seed) go to a
+	 * binary heap that is emptied first, so the result equals {@link #HEAP}.
+	 */
+	RADIX( true );
+
+	private final boolean isArrayBased;
+
+	private QueueType( final boolean isArrayBased )
+	{
+		this.isArrayBased = isArrayBased;
+	}
+
+	/**
+	 * @return {@code true} if the queue is used by {@link FlatFlood}
+	 */
+	public boolean isArrayBased()
+	{
+		return isArrayBased;
+	}
+}
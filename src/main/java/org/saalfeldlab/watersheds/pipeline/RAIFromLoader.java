@@ -2,8 +2,8 @@ package org.saalfeldlab.watersheds.pipeline;
 
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.PairFunction;
-import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.saalfeldlab.watersheds.io.N5WriterPool;
 
 import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
 import net.imglib2.RandomAccessibleInterval;
@@ -28,8 +28,7 @@ public class RAIFromLoader< T extends RealType< T > & NativeType< T > > implemen
 	@Override
 	public Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< T > > call( final HashWrapper< long[] > offset ) throws Exception
 	{
-		final N5FSReader n5 = new N5FSReader( this.group );
-		final RandomAccessibleInterval< T > img = N5Utils.open( n5, this.dataset );
+		final RandomAccessibleInterval< T > img = N5Utils.open( N5WriterPool.reader( this.group ), this.dataset );
 		return new Tuple2<>( offset, img );
 	}
 
@@ -0,0 +1,141 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import java.io.Serializable;
+
+/**
+ * Histogram of flooding priorities (relief values, negated when flooding from
+ * maxima) of a single block, collected on the {@link FlatRelief} copy while
+ * seeding. Used to fit the range and bins of the quantized priority queue to
+ * each block: {@link Mode#RANGE} spreads the bins uniformly between the
+ * minimum and maximum priority of the block, {@link Mode#EQUALIZE} maps
+ * priorities through the cumulative histogram (see {@link #cdf(double)}) so
+ * that all bins hold about the same number of voxels. Non-finite values are
+ * not counted.
+ */
+public class ReliefHistogram implements Serializable
+{
+
+	public enum Mode
+	{
+		RANGE,
+		EQUALIZE;
+	}
+
+	public static final int DEFAULT_BINS = 1024;
+
+	private final double min;
+
+	private final double max;
+
+	private final long[] counts;
+
+	private final long[] cumulativeCounts;
+
+	private ReliefHistogram( final double min, final double max, final long[] counts )
+	{
+		super();
+		this.min = min;
+		this.max = max;
+		this.counts = counts;
+		this.cumulativeCounts = new long[ counts.length + 1 ];
+		for ( int i = 0; i < counts.length; ++i )
+			cumulativeCounts[ i + 1 ] = cumulativeCounts[ i ] + counts[ i ];
+	}
+
+	/**
+	 *
+	 * @param invert
+	 *            count {@code -value} if {@code true}, {@code value}
+	 *            otherwise
+	 * @return histogram of the core of {@code relief} with {@code numBins}
+	 *         bins between smallest and largest priority, {@code null} if
+	 *         there are no finite values
+	 */
+	public static ReliefHistogram of( final FlatRelief relief, final boolean invert, final int numBins )
+	{
+		final double sign = invert ? -1.0 : 1.0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for ( final FlatRelief.CoreCursor c = relief.coreCursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final double priority = sign * relief.get( c.paddedIndex() );
+			if ( Double.isFinite( priority ) )
+			{
+				min = Math.min( min, priority );
+				max = Math.max( max, priority );
+			}
+		}
+
+		if ( min > max )
+			return null;
+
+		final long[] counts = new long[ min < max ? numBins : 1 ];
+		final double scale = counts.length / ( max - min );
+		for ( final FlatRelief.CoreCursor c = relief.coreCursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final double priority = sign * relief.get( c.paddedIndex() );
+			if ( Double.isFinite( priority ) )
+				++counts[ bin( priority, min, scale, counts.length ) ];
+		}
+		return new ReliefHistogram( min, max, counts );
+	}
+
+	public double min()
+	{
+		return min;
+	}
+
+	public double max()
+	{
+		return max;
+	}
+
+	public long count()
+	{
+		return cumulativeCounts[ counts.length ];
+	}
+
+	/**
+	 * Fraction of counted voxels with smaller priority, interpolated linearly
+	 * within histogram bins.
+	 *
+	 * @return value in {@code [0, 1]}, monotonically increasing in
+	 *         {@code priority}
+	 */
+	public double cdf( final double priority )
+	{
+		if ( !( priority > min ) )
+			return 0.0;
+		if ( !( priority < max ) )
+			return 1.0;
+		final double position = ( priority - min ) * counts.length / ( max - min );
+		final int bin = Math.min( ( int ) position, counts.length - 1 );
+		return ( cumulativeCounts[ bin ] + ( position - bin ) * counts[ bin ] ) / count();
+	}
+
+	/**
+	 * Estimate how many voxels end up in each of {@code queueBins} bins of a
+	 * quantized queue fitted with {@code mode}, assigning histogram bins as a
+	 * whole by their center.
+	 */
+	public long[] queueOccupancy( final Mode mode, final int queueBins )
+	{
+		final long[] occupancy = new long[ queueBins ];
+		final double width = ( max - min ) / counts.length;
+		for ( int i = 0; i < counts.length; ++i )
+		{
+			final double center = min + ( i + 0.5 ) * width;
+			final double position = mode == Mode.EQUALIZE ? cdf( center ) : ( center - min ) / ( max - min );
+			occupancy[ Math.min( Math.max( ( int ) ( position * queueBins ), 0 ), queueBins - 1 ) ] += counts[ i ];
+		}
+		return occupancy;
+	}
+
+	private static int bin( final double priority, final double min, final double scale, final int numBins )
+	{
+		return Math.min( ( int ) ( ( priority - min ) * scale ), numBins - 1 );
+	}
+
+}
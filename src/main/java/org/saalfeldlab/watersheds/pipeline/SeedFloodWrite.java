@@ -0,0 +1,110 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.PairFlatMapFunction;
+import org.apache.spark.broadcast.Broadcast;
+import org.saalfeldlab.watersheds.pipeline.overlap.StoreRelevantHyperslices;
+
+import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.view.Views;
+import scala.Tuple2;
+import scala.Tuple3;
+
+/**
+ * Generate seeds, flood and write a single watershed block in one task, so
+ * that neither seed nor watershed blocks need to be persisted between stages.
+ * Label offsets are either looked up from seed counts of a previous (counting)
+ * pass over all blocks, or derived from the block position through
+ * {@link BlockLabels}. If {@code faces} is not {@code null}, the faces of the
+ * watershed block are extracted for merging and returned as
+ * {@code (cellPosition, encoded faces)}, otherwise {@code null} is returned
+ * for each block. With {@code localLabels}, blocks are seeded and flooded with
+ * block-local labels (e.g. in 32 bit storage) that are widened to global ids
+ * when writing. Blocks of a partition are written through a single
+ * {@link WritePartition.Sink}, in the background if {@code write} has write
+ * threads, while the next block is flooded.
+ */
+public class SeedFloodWrite< L extends IntegerType< L > > implements PairFlatMapFunction< Iterator< Tuple2< HashWrapper< long[] >, Tuple2< ArrayImg< L, ? >, long[] > > >, HashWrapper< long[] >, Tuple2< long[], byte[] > >
+{
+
+	private final MakeSeeds.SeedGenerator< L > seedGenerator;
+
+	private final Broadcast< HashMap< HashWrapper< long[] >, Long > > offsets;
+
+	private final BlockLabels blockLabels;
+
+	private final Function< Tuple3< ArrayImg< L, ? >, long[], Seeds >, Tuple2< ArrayImg< L, ? >, long[] > > watershed;
+
+	private final boolean localLabels;
+
+	private final WritePartition< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > write;
+
+	private final StoreRelevantHyperslices< UnsignedLongType > faces;
+
+	/**
+	 *
+	 * @param offsets
+	 *            label offset for each block, only used if {@code blockLabels}
+	 *            is {@code null}
+	 * @param blockLabels
+	 *            block encoded label offsets, may be {@code null}
+	 * @param localLabels
+	 *            seed and flood with block-local labels and add the label
+	 *            offset only when writing (see {@link Widen}), instead of
+	 *            seeding with global labels
+	 * @param faces
+	 *            extract faces for merging, may be {@code null}
+	 */
+	public SeedFloodWrite(
+			final MakeSeeds.SeedGenerator< L > seedGenerator,
+			final Broadcast< HashMap< HashWrapper< long[] >, Long > > offsets,
+			final BlockLabels blockLabels,
+			final Function< Tuple3< ArrayImg< L, ? >, long[], Seeds >, Tuple2< ArrayImg< L, ? >, long[] > > watershed,
+			final boolean localLabels,
+			final WritePartition< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > write,
+			final StoreRelevantHyperslices< UnsignedLongType > faces )
+	{
+		super();
+		this.seedGenerator = seedGenerator;
+		this.offsets = offsets;
+		this.blockLabels = blockLabels;
+		this.watershed = watershed;
+		this.localLabels = localLabels;
+		this.write = write;
+		this.faces = faces;
+	}
+
+	@Override
+	public Iterator< Tuple2< HashWrapper< long[] >, Tuple2< long[], byte[] > > > call( final Iterator< Tuple2< HashWrapper< long[] >, Tuple2< ArrayImg< L, ? >, long[] > > > blocks ) throws Exception
+	{
+		final List< Tuple2< HashWrapper< long[] >, Tuple2< long[], byte[] > > > blockFaces = new ArrayList<>();
+		if ( !blocks.hasNext() )
+			return blockFaces.iterator();
+
+		final WritePartition< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > >.Sink sink = write.open();
+		while ( blocks.hasNext() )
+		{
+			final Tuple2< HashWrapper< long[] >, Tuple2< ArrayImg< L, ? >, long[] > > t = blocks.next();
+			final HashWrapper< long[] > block = t._1();
+			final long labelOffset = blockLabels == null ? offsets.getValue().get( block ) : blockLabels.offset( block.getData() );
+			final Tuple2< ArrayImg< L, ? >, long[] > labels = watershed.call( seedGenerator.call( t._2(), localLabels ? 0 : labelOffset ) );
+
+			final RandomAccessibleInterval< UnsignedLongType > widened = Widen.widen( labels._1(), localLabels ? labelOffset : 0 );
+			final Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > translated = new Tuple2<>( block, Views.translate( widened, labels._2() ) );
+			sink.accept( translated );
+			blockFaces.add( new Tuple2<>( block, faces == null ? null : faces.call( translated )._2() ) );
+		}
+		sink.close();
+		return blockFaces.iterator();
+	}
+
+}
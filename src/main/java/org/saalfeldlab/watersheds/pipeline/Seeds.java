@@ -0,0 +1,139 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Seed voxels of a label block as packed flat indices into the block
+ * (including halo), collected while seeding, and the number of distinct seed
+ * labels. Positions are materialized one at a time through
+ * {@link #asLocalizables(long[], long[])} instead of holding one
+ * {@link Point} per seed. Seed generators may attach a
+ * {@link ReliefHistogram} of the block for fitting the priority queue.
+ */
+public class Seeds implements Serializable
+{
+
+	private long[] indices;
+
+	private int size;
+
+	private long numLabels;
+
+	private ReliefHistogram histogram;
+
+	public Seeds()
+	{
+		this( 16 );
+	}
+
+	public Seeds( final int initialCapacity )
+	{
+		super();
+		this.indices = new long[ Math.max( initialCapacity, 1 ) ];
+		this.size = 0;
+		this.numLabels = 0;
+		this.histogram = null;
+	}
+
+	public void add( final long index )
+	{
+		if ( size == indices.length )
+			indices = Arrays.copyOf( indices, 2 * size );
+		indices[ size++ ] = index;
+	}
+
+	/**
+	 * Sort indices into flat iteration order of the block.
+	 */
+	public void sort()
+	{
+		Arrays.sort( indices, 0, size );
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public long index( final int i )
+	{
+		return indices[ i ];
+	}
+
+	public long numLabels()
+	{
+		return numLabels;
+	}
+
+	public void setNumLabels( final long numLabels )
+	{
+		this.numLabels = numLabels;
+	}
+
+	/**
+	 * @return histogram of the relief block, {@code null} if not collected
+	 */
+	public ReliefHistogram histogram()
+	{
+		return histogram;
+	}
+
+	public void setHistogram( final ReliefHistogram histogram )
+	{
+		this.histogram = histogram;
+	}
+
+	/**
+	 *
+	 * @param dimensions
+	 *            dimensions of the label block
+	 * @param offset
+	 *            min of the label block
+	 * @return view of seed positions (in global coordinates) that creates a
+	 *         new {@link Point} on each access
+	 */
+	public List< Localizable > asLocalizables( final long[] dimensions, final long[] offset )
+	{
+		return new LocalizableView( dimensions, offset );
+	}
+
+	private class LocalizableView extends AbstractList< Localizable > implements java.util.RandomAccess
+	{
+
+		private final long[] dimensions;
+
+		private final long[] offset;
+
+		public LocalizableView( final long[] dimensions, final long[] offset )
+		{
+			super();
+			this.dimensions = dimensions;
+			this.offset = offset;
+		}
+
+		@Override
+		public Localizable get( final int i )
+		{
+			if ( i < 0 || i >= size )
+				throw new IndexOutOfBoundsException( "Index: " + i + ", Size: " + size );
+			final long[] position = new long[ dimensions.length ];
+			IntervalIndexer.indexToPositionWithOffset( indices[ i ], dimensions, offset, position );
+			return new Point( position );
+		}
+
+		@Override
+		public int size()
+		{
+			return size;
+		}
+
+	}
+
+}
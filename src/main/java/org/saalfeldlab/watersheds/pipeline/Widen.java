@@ -0,0 +1,69 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import java.util.HashMap;
+
+import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.broadcast.Broadcast;
+
+import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import scala.Tuple2;
+
+/**
+ * Translate a label block to its min and map block-local labels
+ * {@code 1, 2, ...} to global {@link UnsignedLongType} ids by adding the label
+ * offset of the block, either looked up from seed counts of all blocks or
+ * derived from the block position through {@link BlockLabels}. Label
+ * {@code 0} stays {@code 0}. Labels are converted on access, so no 64 bit
+ * copy of the block is created. Without offsets, this is the same as
+ * {@link Translate} for {@link UnsignedLongType} blocks.
+ */
+public class Widen< L extends IntegerType< L > > implements PairFunction< Tuple2< HashWrapper< long[] >, Tuple2< ArrayImg< L, ? >, long[] > >, HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > >
+{
+
+	private final Broadcast< HashMap< HashWrapper< long[] >, Long > > offsets;
+
+	private final BlockLabels blockLabels;
+
+	/**
+	 *
+	 * @param offsets
+	 *            label offset for each block, only used if {@code blockLabels}
+	 *            is {@code null}, labels are not offset if both are
+	 *            {@code null}
+	 * @param blockLabels
+	 *            block encoded label offsets, may be {@code null}
+	 */
+	public Widen( final Broadcast< HashMap< HashWrapper< long[] >, Long > > offsets, final BlockLabels blockLabels )
+	{
+		super();
+		this.offsets = offsets;
+		this.blockLabels = blockLabels;
+	}
+
+	@Override
+	public Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > call( final Tuple2< HashWrapper< long[] >, Tuple2< ArrayImg< L, ? >, long[] > > t ) throws Exception
+	{
+		final HashWrapper< long[] > block = t._1();
+		final long labelOffset = blockLabels != null ? blockLabels.offset( block.getData() ) : offsets != null ? offsets.getValue().get( block ) : 0;
+		return new Tuple2<>( block, Views.translate( widen( t._2()._1(), labelOffset ), t._2()._2() ) );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public static < L extends IntegerType< L > > RandomAccessibleInterval< UnsignedLongType > widen( final RandomAccessibleInterval< L > labels, final long labelOffset )
+	{
+		if ( labelOffset == 0 && Util.getTypeFromInterval( labels ) instanceof UnsignedLongType )
+			return ( RandomAccessibleInterval< UnsignedLongType > ) labels;
+		return Converters.convert( labels, ( s, t ) -> {
+			final long label = s.getIntegerLong();
+			t.set( label == 0 ? 0 : label + labelOffset );
+		}, new UnsignedLongType() );
+	}
+
+}
@@ -1,45 +1,47 @@
 package org.saalfeldlab.watersheds.pipeline;
 
 import org.apache.spark.api.java.JavaSparkContext;
-import org.apache.spark.api.java.function.Function;
 import org.apache.spark.broadcast.Broadcast;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
-import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
 
 import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.cell.CellGrid;
-import net.imglib2.type.NativeType;
-import net.imglib2.view.Views;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.Intervals;
 import scala.Tuple2;
 
-public class Write< T extends NativeType< T > > implements Function< Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< T > >, Boolean >
+/**
+ * Copy the core of a label block into a data block for its cell of a 64 bit
+ * integer dataset, written by {@link WritePartition}. Blocks stored in
+ * {@code long} arrays are copied in bulk or not at all (see
+ * {@link LongArrayBlocks}).
+ */
+public class Write< T extends IntegerType< T > > implements WritePartition.BlockWriter< HashWrapper< long[] >, RandomAccessibleInterval< T > >
 {
 
-	private final Broadcast< String > group;
-
-	private final Broadcast< String > dataset;
-
 	private final Broadcast< CellGrid > grid;
 
-	public Write( final JavaSparkContext sc, final String group, final String dataset, final CellGrid grid )
+	public Write( final JavaSparkContext sc, final CellGrid grid )
+	{
+		this( sc.broadcast( grid ) );
+	}
+
+	public Write( final Broadcast< CellGrid > grid )
 	{
 		super();
-		this.group = sc.broadcast( group );
-		this.dataset = sc.broadcast( dataset );
-		this.grid = sc.broadcast( grid );
+		this.grid = grid;
 	}
 
 	@Override
-	public Boolean call( final Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< T > > t ) throws Exception
+	public DataBlock< ? > dataBlock( final DatasetAttributes attributes, final Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< T > > t )
 	{
 		final long[] min = t._1().getData().clone();
 
 		final CellGrid grid = this.grid.getValue();
-		final N5Writer writer = new N5FSWriter( group.getValue() );
-		final String dataset = this.dataset.getValue();
 
 		assert min.length == grid.numDimensions();
 
@@ -53,9 +55,11 @@ public class Write< T extends NativeType< T > > implements Function< Tuple2< Has
 			max[ d ] = Math.min( min[ d ] + blockSize[ d ], grid.imgDimension( d ) ) - 1;
 			blockPosition[ d ] = min[ d ] / blockSize[ d ];
 		}
-		N5Utils.saveBlock( Views.interval( t._2(), new FinalInterval( min, max ) ), writer, dataset, blockPosition );
+		final FinalInterval interval = new FinalInterval( min, max );
 
-		return true;
+		// label blocks are not modified after flooding, the data block may
+		// share their storage
+		return new LongArrayDataBlock( Intervals.dimensionsAsIntArray( interval ), blockPosition, LongArrayBlocks.data( t._2(), interval ) );
 	}
 
 }
@@ -0,0 +1,244 @@
+package org.saalfeldlab.watersheds.pipeline;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.janelia.saalfeldlab.n5.CompressionType;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.saalfeldlab.watersheds.io.N5WriterPool;
+import org.saalfeldlab.watersheds.io.WriteBehind;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scala.Tuple2;
+
+/**
+ * Write all blocks of a partition into {@code dataset} in a single pass with
+ * the pooled writer of the executor (see {@link N5WriterPool}), instead of
+ * opening a writer and reading attributes for each block. Dataset attributes
+ * are read once on the driver when the write stage is set up, i.e. after the
+ * dataset has been created, and shipped with the function, so that a dataset
+ * that is re-created (e.g. with a different compression) is never written
+ * with attributes of an earlier stage. Number of blocks and voxels written and
+ * throughput are logged per partition. Returns the number of blocks written
+ * and the keys of blocks that were skipped (see {@link BlockWriter#dataBlock})
+ * for each partition.
+ *
+ * With {@code writeThreads > 0}, data blocks are created on the task thread
+ * and handed to the {@link WriteBehind} pool of the executor for compression
+ * and writing, so that the task can compute the next block (e.g. flood it)
+ * in the meantime. All blocks of a partition are written when the partition
+ * completes.
+ */
+public class WritePartition< K, V > implements FlatMapFunction< Iterator< Tuple2< K, V > >, Tuple2< Long, List< K > > >
+{
+
+	private static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
+
+	public interface BlockWriter< K, V > extends Serializable
+	{
+		/**
+		 * Create the data block for {@code block}. The data block must not
+		 * share data that is modified after this call returns.
+		 *
+		 * @return data block or {@code null} if {@code block} should not be
+		 *         written
+		 */
+		public DataBlock< ? > dataBlock( DatasetAttributes attributes, Tuple2< K, V > block ) throws Exception;
+	}
+
+	/**
+	 * Write blocks on the task thread.
+	 *
+	 * @return number of blocks written
+	 */
+	public static < K, V > long write(
+			final JavaPairRDD< K, V > blocks,
+			final String group,
+			final String dataset,
+			final BlockWriter< K, V > blockWriter ) throws IOException
+	{
+		return write( blocks, new WritePartition<>( group, dataset, blockWriter, 0, 0 ) );
+	}
+
+	/**
+	 *
+	 * @return number of blocks written
+	 */
+	public static < K, V > long write(
+			final JavaPairRDD< K, V > blocks,
+			final WritePartition< K, V > writePartition )
+	{
+		return write( blocks, writePartition, null );
+	}
+
+	/**
+	 *
+	 * @param skipped
+	 *            collects the keys of all skipped blocks, may be {@code null}
+	 * @return number of blocks written
+	 */
+	public static < K, V > long write(
+			final JavaPairRDD< K, V > blocks,
+			final WritePartition< K, V > writePartition,
+			final List< K > skipped )
+	{
+		long numBlocks = 0;
+		for ( final Tuple2< Long, List< K > > result : blocks.mapPartitions( writePartition ).collect() )
+		{
+			numBlocks += result._1();
+			if ( skipped != null )
+				skipped.addAll( result._2() );
+		}
+		return numBlocks;
+	}
+
+	private final String group;
+
+	private final String dataset;
+
+	private final BlockWriter< K, V > blockWriter;
+
+	private final long[] dimensions;
+
+	private final int[] blockSize;
+
+	private final DataType dataType;
+
+	private final CompressionType compression;
+
+	private final int writeThreads;
+
+	private final int writeQueueSize;
+
+	/**
+	 * Must be called on the driver after {@code dataset} has been created.
+	 *
+	 * @param writeThreads
+	 *            number of threads of the executor wide {@link WriteBehind}
+	 *            pool, blocks are written on the task thread if not positive
+	 * @param writeQueueSize
+	 *            maximum number of blocks queued or being written per executor
+	 */
+	public WritePartition( final String group, final String dataset, final BlockWriter< K, V > blockWriter, final int writeThreads, final int writeQueueSize ) throws IOException
+	{
+		super();
+		final DatasetAttributes attributes = new N5FSReader( group ).getDatasetAttributes( dataset );
+		if ( attributes == null )
+			throw new IOException( "No dataset " + dataset + " in " + group );
+		this.group = group;
+		this.dataset = dataset;
+		this.blockWriter = blockWriter;
+		this.dimensions = attributes.getDimensions();
+		this.blockSize = attributes.getBlockSize();
+		this.dataType = attributes.getDataType();
+		this.compression = attributes.getCompressionType();
+		this.writeThreads = writeThreads;
+		this.writeQueueSize = writeQueueSize;
+	}
+
+	@Override
+	public Iterator< Tuple2< Long, List< K > > > call( final Iterator< Tuple2< K, V > > blocks ) throws Exception
+	{
+		if ( !blocks.hasNext() )
+			return Collections.singletonList( new Tuple2< Long, List< K > >( 0L, new ArrayList<>() ) ).iterator();
+
+		final Sink sink = open();
+		while ( blocks.hasNext() )
+			sink.accept( blocks.next() );
+		return Collections.singletonList( new Tuple2<>( sink.close(), sink.skipped() ) ).iterator();
+	}
+
+	/**
+	 * Start writing a partition, for tasks that write blocks as a side effect
+	 * of a different output.
+	 */
+	public Sink open() throws IOException
+	{
+		return new Sink();
+	}
+
+	public class Sink
+	{
+
+		private final N5Writer writer;
+
+		private final DatasetAttributes attributes;
+
+		private final WriteBehind.Batch batch;
+
+		private final long start = System.nanoTime();
+
+		private long numBlocks = 0;
+
+		private long numVoxels = 0;
+
+		private final List< K > skipped = new ArrayList<>();
+
+		private Sink() throws IOException
+		{
+			this.writer = N5WriterPool.writer( group );
+			this.attributes = new DatasetAttributes( dimensions, blockSize, dataType, compression );
+			this.batch = writeThreads > 0 ? WriteBehind.getInstance( writeThreads, writeQueueSize ).batch() : null;
+		}
+
+		public void accept( final Tuple2< K, V > block ) throws Exception
+		{
+			final DataBlock< ? > dataBlock = blockWriter.dataBlock( attributes, block );
+			if ( dataBlock == null )
+			{
+				skipped.add( block._1() );
+				return;
+			}
+			if ( batch == null )
+				writer.writeBlock( dataset, attributes, dataBlock );
+			else
+				batch.submit( writer, dataset, attributes, dataBlock );
+			++numBlocks;
+			numVoxels += dataBlock.getNumElements();
+		}
+
+		/**
+		 * Wait for all blocks of this partition to be written.
+		 *
+		 * @return number of blocks written
+		 */
+		public long close() throws IOException, InterruptedException
+		{
+			if ( batch != null )
+				batch.flush();
+			final double seconds = Math.max( System.nanoTime() - start, 1 ) * 1e-9;
+			LOG.info(
+					"Wrote {} blocks ({} voxels, {} skipped) into {} in {}s ({} blocks/s, {} MVoxel/s).",
+					numBlocks,
+					numVoxels,
+					skipped.size(),
+					dataset,
+					String.format( "%.3f", seconds ),
+					String.format( "%.1f", numBlocks / seconds ),
+					String.format( "%.1f", numVoxels * 1e-6 / seconds ) );
+			return numBlocks;
+		}
+
+		/**
+		 * @return keys of blocks that were not written
+		 */
+		public List< K > skipped()
+		{
+			return skipped;
+		}
+
+	}
+
+}
@@ -3,20 +3,21 @@ package org.saalfeldlab.watersheds.pipeline.overlap;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.invoke.MethodHandles;
-import java.util.function.BiConsumer;
+import java.util.concurrent.ExecutionException;
 import java.util.function.BiFunction;
 
 import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
-import org.janelia.saalfeldlab.n5.CompressionType;
-import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
-import org.janelia.saalfeldlab.n5.N5Writer;
-import org.saalfeldlab.watersheds.UnionFindSparse;
+import org.saalfeldlab.watersheds.pipeline.overlap.faces.FaceContainer;
+import org.saalfeldlab.watersheds.pipeline.overlap.global.GlobalUnionFindInOverlaps;
+import org.saalfeldlab.watersheds.pipeline.overlap.global.HaloOverlaps;
 import org.saalfeldlab.watersheds.pipeline.overlap.hierarchical.ApplyHierarchicalUnionFind;
 import org.saalfeldlab.watersheds.pipeline.overlap.hierarchical.HierarchicalUnionFindInOverlaps;
-import org.saalfeldlab.watersheds.pipeline.overlap.match.FindMatchesAgreementInBiggestOverlap;
+import org.saalfeldlab.watersheds.pipeline.overlap.match.InstrumentedMatcher;
+import org.saalfeldlab.watersheds.pipeline.overlap.match.MergeStrategy;
+import org.saalfeldlab.watersheds.pipeline.overlap.match.OverlapMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,54 +32,142 @@ public class MergeOverlappingBlocks
 
 	private static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
 
+	public enum MergeMode
+	{
+		/**
+		 * One union find per level of doubling superblocks.
+		 */
+		HIERARCHICAL,
+		/**
+		 * One connected components solve over all equivalences across
+		 * blocks.
+		 */
+		GLOBAL,
+		/**
+		 * Like {@link #GLOBAL} but equivalences are found in the full halo
+		 * overlap of neighboring blocks, exchanged through a shuffle instead
+		 * of hyperslices stored in the tmp group.
+		 */
+		HALO;
+	}
+
 	public static void mergeOverlap(
 			final JavaSparkContext sc,
 			final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > remapped,
 			final String group,
 			final String tmpGroup,
-			final String n5DatasetPatternUpper,
-			final String n5DatasetPatternLower,
+			final String n5FacesDataset,
 			final String n5Target,
-			final CellGrid wsGrid
-			) throws IOException
+			final CellGrid wsGrid,
+			final int halo,
+			final MergeMode mergeMode,
+			final MergeStrategy mergeStrategy,
+			final long minimumOverlap,
+			final long maxDriverEdges,
+			final int mergeThreads,
+			final boolean skipUnchanged
+			) throws IOException, InterruptedException, ExecutionException
 	{
 
 		final Broadcast< CellGrid > wsGridBC = sc.broadcast( wsGrid );
 		final Broadcast< UnsignedLongType > invalidExtensionBC = sc.broadcast( new UnsignedLongType( 0 ) );
+		final InstrumentedMatcher matcher = new InstrumentedMatcher( sc, "merge-strategy " + mergeStrategy, mergeStrategy.create( minimumOverlap ) );
 
-		for ( int d = 0; d < wsGrid.numDimensions(); ++d ) {
-
-			final int finalD = d;
-			final String n5TargetUpper = String.format( n5DatasetPatternUpper, d );
-			// n5Target + "-upper-" + d;
-			final String n5TargetLower = String.format( n5DatasetPatternLower, d );
-			// n5Target + "-lower-" + d;
-
-			// size along current dimension is equal to number of cells in this
-			// dimension (also, cell size along this dimension is 1)
-			final long[] imgSize = wsGrid.getImgDimensions();
-			imgSize[ d ] = wsGrid.gridDimension( d );
-			final int[] blockSize = new int[ wsGrid.numDimensions() ];
-			for ( int k = 0; k < blockSize.length; ++k )
-				blockSize[ k ] = k == d ? 1 : wsGrid.cellDimension( k );
-
-			final N5Writer tmpWriter = new N5FSWriter( tmpGroup );
-			tmpWriter.createDataset( n5TargetUpper, imgSize, blockSize, DataType.UINT64, CompressionType.RAW );
-			tmpWriter.createDataset( n5TargetLower, imgSize, blockSize, DataType.UINT64, CompressionType.RAW );
-			remapped.map( new StoreRelevantHyperslices<>( wsGridBC, tmpGroup, invalidExtensionBC, finalD, n5TargetUpper, n5TargetLower ) ).count();
+		if ( mergeMode == MergeMode.HALO )
+		{
+			final JavaRDD< Tuple2< long[], long[] > > edges = HaloOverlaps.findEdges( remapped, wsGridBC, halo, matcher );
+			GlobalUnionFindInOverlaps.solveAndApply( sc, edges, remapped, wsGridBC, group, tmpGroup, n5Target, maxDriverEdges, mergeThreads, skipUnchanged );
+		}
+		else
+		{
+			// all 2 * nDim faces of a block in a single pass over the blocks
+			final FaceContainer faces = faceContainer( tmpGroup, n5FacesDataset, wsGrid );
+			StoreRelevantHyperslices.store( remapped, wsGridBC, invalidExtensionBC, faces );
+			mergeFaces( sc, remapped, group, tmpGroup, faces, n5Target, wsGrid, mergeMode, matcher, maxDriverEdges, mergeThreads, skipUnchanged );
 		}
 
-		final BiConsumer< Tuple2< long[], long[] >, UnionFindSparse > matcher = new FindMatchesAgreementInBiggestOverlap();
-		HierarchicalUnionFindInOverlaps.createOverlaps(
-				sc,
-				wsGrid,
-				matcher,
-				tmpGroup,
-				n5DatasetPatternUpper,
-				n5DatasetPatternLower,
-				new UnionFindSerializationPattern( tmpGroup ) );
-
-		ApplyHierarchicalUnionFind.apply( sc, remapped, wsGrid, group, n5Target, new UnionFindSerializationPattern( tmpGroup ) );
+		LOG.info( "Merged blocks with strategy {}: {}", mergeStrategy, matcher );
+	}
+
+	/**
+	 * Merge blocks whose faces have already been stored in the
+	 * {@link #faceContainer} for {@code n5FacesDataset}, e.g. by
+	 * {@link StoreRelevantHyperslices}. Only {@link MergeMode#HIERARCHICAL}
+	 * and {@link MergeMode#GLOBAL} work on stored faces.
+	 *
+	 * @param blocks
+	 *            watershed blocks in global coordinates, only the core of each
+	 *            block (without halo) is accessed.
+	 * @param skipUnchanged
+	 *            do not write blocks whose labels are all their own roots, see
+	 *            {@link UnchangedBlocks}
+	 */
+	public static void mergeStoredFaces(
+			final JavaSparkContext sc,
+			final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > blocks,
+			final String group,
+			final String tmpGroup,
+			final String n5FacesDataset,
+			final String n5Target,
+			final CellGrid wsGrid,
+			final MergeMode mergeMode,
+			final MergeStrategy mergeStrategy,
+			final long minimumOverlap,
+			final long maxDriverEdges,
+			final int mergeThreads,
+			final boolean skipUnchanged ) throws IOException, InterruptedException, ExecutionException
+	{
+		final InstrumentedMatcher matcher = new InstrumentedMatcher( sc, "merge-strategy " + mergeStrategy, mergeStrategy.create( minimumOverlap ) );
+		mergeFaces( sc, blocks, group, tmpGroup, faceContainer( tmpGroup, n5FacesDataset, wsGrid ), n5Target, wsGrid, mergeMode, matcher, maxDriverEdges, mergeThreads, skipUnchanged );
+		LOG.info( "Merged blocks with strategy {}: {}", mergeStrategy, matcher );
+	}
+
+	public static FaceContainer faceContainer( final String tmpGroup, final String n5FacesDataset, final CellGrid wsGrid )
+	{
+		return new FaceContainer( tmpGroup + "/" + n5FacesDataset, wsGrid.numDimensions() );
+	}
+
+	private static void mergeFaces(
+			final JavaSparkContext sc,
+			final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > blocks,
+			final String group,
+			final String tmpGroup,
+			final FaceContainer faces,
+			final String n5Target,
+			final CellGrid wsGrid,
+			final MergeMode mergeMode,
+			final OverlapMatcher matcher,
+			final long maxDriverEdges,
+			final int mergeThreads,
+			final boolean skipUnchanged ) throws IOException, InterruptedException, ExecutionException
+	{
+		if ( mergeMode == MergeMode.GLOBAL )
+			GlobalUnionFindInOverlaps.merge(
+					sc,
+					blocks,
+					wsGrid,
+					matcher,
+					group,
+					tmpGroup,
+					faces,
+					n5Target,
+					maxDriverEdges,
+					mergeThreads,
+					skipUnchanged );
+		else if ( mergeMode == MergeMode.HIERARCHICAL )
+		{
+			HierarchicalUnionFindInOverlaps.createOverlaps(
+					sc,
+					wsGrid,
+					matcher,
+					faces,
+					new UnionFindSerializationPattern( tmpGroup ),
+					mergeThreads );
+
+			ApplyHierarchicalUnionFind.apply( sc, blocks, wsGrid, group, n5Target, new UnionFindSerializationPattern( tmpGroup ), skipUnchanged );
+		}
+		else
+			throw new IllegalArgumentException( "Cannot merge stored faces with merge mode " + mergeMode );
 	}
 
 	public static class UnionFindSerializationPattern implements BiFunction< Integer, long[], String >, Serializable
@@ -2,9 +2,8 @@ package org.saalfeldlab.watersheds.pipeline.overlap;
 
 import org.apache.spark.api.java.function.Function;
 import org.apache.spark.broadcast.Broadcast;
-import org.saalfeldlab.watersheds.UnionFindSparse;
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
 
-import gnu.trove.map.hash.TLongLongHashMap;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.view.Views;
@@ -30,7 +29,7 @@ public class RemapMatching< I extends IntegerType< I > > implements Function< Ra
 	@Override
 	public RandomAccessibleInterval< I > call( final RandomAccessibleInterval< I > rai ) throws Exception
 	{
-		final UnionFindSparse uf = new UnionFindSparse( new TLongLongHashMap( parentsBC.getValue()._1(), parentsBC.getValue()._2() ), setCount );
+		final UnionFindSparseCompact uf = new UnionFindSparseCompact( parentsBC.getValue()._1(), parentsBC.getValue()._2() );
 
 		for ( final I t : Views.flatIterable( rai ) )
 			if ( t.getIntegerLong() != 0 )
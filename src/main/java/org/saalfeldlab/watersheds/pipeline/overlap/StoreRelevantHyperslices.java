@@ -1,81 +1,106 @@
 package org.saalfeldlab.watersheds.pipeline.overlap;
 
-import org.apache.spark.api.java.function.Function;
+import java.util.Arrays;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.function.PairFunction;
 import org.apache.spark.broadcast.Broadcast;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
-import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.saalfeldlab.watersheds.pipeline.overlap.faces.BlockFaces;
+import org.saalfeldlab.watersheds.pipeline.overlap.faces.FaceContainer;
 
 import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.cell.CellGrid;
-import net.imglib2.type.NativeType;
-import net.imglib2.util.ConstantUtils;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import scala.Tuple2;
 
-public class StoreRelevantHyperslices< T extends NativeType< T > > implements Function< Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< T > >, Boolean >
+/**
+ * Extract the lower and upper face of a block for all dimensions in a single
+ * visit into one {@link BlockFaces} per block. Encoded faces are keyed by the
+ * shard of the {@link FaceContainer} they belong to.
+ */
+public class StoreRelevantHyperslices< I extends IntegerType< I > > implements PairFunction< Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< I > >, HashWrapper< long[] >, Tuple2< long[], byte[] > >
 {
 
-	private final Broadcast< CellGrid > gridBC;
-
-	private final String group;
-
-	private final Broadcast< T > invalidExtension;
+	public static < I extends IntegerType< I > > void store(
+			final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< I > > blocks,
+			final Broadcast< CellGrid > wsGridBC,
+			final Broadcast< I > invalidExtension,
+			final FaceContainer faces )
+	{
+		blocks
+				.mapToPair( new StoreRelevantHyperslices<>( wsGridBC, invalidExtension, faces ) )
+				.groupByKey()
+				.foreach( shard -> faces.writeShard( shard._1().getData(), shard._2() ) );
+	}
 
-	private final int dimension;
+	private final Broadcast< CellGrid > gridBC;
 
-	private final String n5TargetUpper;
+	private final Broadcast< I > invalidExtension;
 
-	private final String n5TargetLower;
+	private final FaceContainer faces;
 
-	public StoreRelevantHyperslices( final Broadcast< CellGrid > wsGridBC, final String group, final Broadcast< T > invalidExtension, final int dimension, final String n5TargetUpper, final String n5TargetLower )
+	public StoreRelevantHyperslices( final Broadcast< CellGrid > wsGridBC, final Broadcast< I > invalidExtension, final FaceContainer faces )
 	{
 		super();
 		this.gridBC = wsGridBC;
-		this.group = group;
 		this.invalidExtension = invalidExtension;
-		this.dimension = dimension;
-		this.n5TargetUpper = n5TargetUpper;
-		this.n5TargetLower = n5TargetLower;
+		this.faces = faces;
 	}
 
 	@Override
-	public Boolean call( final Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< T > > t ) throws Exception
+	public Tuple2< HashWrapper< long[] >, Tuple2< long[], byte[] > > call( final Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< I > > t ) throws Exception
 	{
 
 		final CellGrid grid = gridBC.getValue();
-		final N5Writer writer = new N5FSWriter( group );
-		final RandomAccessibleInterval< T > rai = t._2();
+		final RandomAccessibleInterval< I > rai = t._2();
 		final long[] pos = t._1().getData().clone();
-		final long[] min = pos.clone();
-		final long[] max = new long[ min.length ];
-		for ( int k = 0; k < max.length; ++k )
-			max[ k ] = Math.min( min[ k ] + grid.cellDimension( k ), grid.imgDimension( k ) ) - 1;
-		max[ dimension ] += 1;
-
-		// create view of last plane along finalD within interval
-		min[ dimension ] = max[ dimension ];
-		final FinalInterval lastPlaneInterval = new FinalInterval( min, max );
-		final RandomAccessibleInterval< T > upper;
-		if ( max[ dimension ] > rai.max( dimension ) )
-			upper = Views.zeroMin( ConstantUtils.constantRandomAccessibleInterval( invalidExtension.getValue(), min.length, lastPlaneInterval ) );
-		else
-			upper = Views.zeroMin( Views.interval( rai, lastPlaneInterval ) );
-
-		// create view of first plane along finalD within interval
-		min[ dimension ] = pos[ dimension ];
-		max[ dimension ] = min[ dimension ];
-		final FinalInterval firstPlaneInterval = new FinalInterval( min, max );
-//				System.out.println( "first min max " + Arrays.toString( min ) + " " + Arrays.toString( max ) );
-		final RandomAccessibleInterval< T > lower = Views.zeroMin( Views.interval( rai, firstPlaneInterval ) );
-
-		final long[] cellPos = new long[ pos.length ];
+		final int nDim = pos.length;
+		final long invalid = invalidExtension.getValue().getIntegerLong();
+		final BlockFaces blockFaces = new BlockFaces( nDim );
+
+		for ( int dimension = 0; dimension < nDim; ++dimension )
+		{
+			final long[] min = pos.clone();
+			final long[] max = new long[ nDim ];
+			for ( int k = 0; k < max.length; ++k )
+				max[ k ] = Math.min( min[ k ] + grid.cellDimension( k ), grid.imgDimension( k ) ) - 1;
+
+			// first plane along dimension within block
+			max[ dimension ] = min[ dimension ];
+			blockFaces.setLower( dimension, plane( rai, new FinalInterval( min, max ), false, invalid ) );
+
+			// first plane along dimension past block (from halo)
+			min[ dimension ] = Math.min( pos[ dimension ] + grid.cellDimension( dimension ), grid.imgDimension( dimension ) );
+			max[ dimension ] = min[ dimension ];
+			blockFaces.setUpper( dimension, plane( rai, new FinalInterval( min, max ), max[ dimension ] > rai.max( dimension ), invalid ) );
+		}
+
+		final long[] cellPos = new long[ nDim ];
 		grid.getCellPosition( pos, cellPos );
-		N5Utils.saveBlock( upper, writer, n5TargetUpper, cellPos );
-		N5Utils.saveBlock( lower, writer, n5TargetLower, cellPos );
+		return new Tuple2<>( HashWrapper.longArray( faces.shardPosition( cellPos ) ), new Tuple2<>( cellPos, blockFaces.toBytes() ) );
+	}
 
-		return true;
+	private static < I extends IntegerType< I > > long[] plane(
+			final RandomAccessibleInterval< I > rai,
+			final FinalInterval interval,
+			final boolean isOutside,
+			final long invalid )
+	{
+		final long[] data = new long[ ( int ) Intervals.numElements( interval ) ];
+		if ( isOutside )
+		{
+			if ( invalid != 0 )
+				Arrays.fill( data, invalid );
+			return data;
+		}
+		final Cursor< I > c = Views.flatIterable( Views.interval( rai, interval ) ).cursor();
+		for ( int i = 0; c.hasNext(); ++i )
+			data[ i ] = c.next().getIntegerLong();
+		return data;
 	}
 }
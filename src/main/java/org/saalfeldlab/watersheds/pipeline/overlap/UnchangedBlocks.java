@@ -0,0 +1,149 @@
+package org.saalfeldlab.watersheds.pipeline.overlap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.saalfeldlab.watersheds.Util;
+
+import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * Blocks of the merged dataset whose labels are all their own roots are
+ * identical to the corresponding blocks of the (unmerged) watershed dataset.
+ * When merging with {@code skipUnchanged}, these blocks are not written.
+ * Their grid positions are stored in the {@value #ATTRIBUTE} attribute of the
+ * merged dataset instead, and readers fall back to the dataset named in the
+ * {@value #SOURCE_ATTRIBUTE} attribute for them. Alternatively, the block files
+ * of the watershed dataset are hard linked into the merged dataset with
+ * {@link #link}, so that the merged dataset is complete for any reader.
+ *
+ * Hard linked block files share their content with the watershed dataset, and
+ * N5 rewrites existing block files in place. Before any merged block is
+ * written, {@link #clear} must unlink all block files of the merged dataset
+ * left over from a previous run, so that writes never go through a link.
+ */
+public class UnchangedBlocks
+{
+
+	public enum Mode
+	{
+		/**
+		 * Write all blocks.
+		 */
+		WRITE,
+		/**
+		 * Skip unchanged blocks and record them in an attribute.
+		 */
+		SKIP,
+		/**
+		 * Skip unchanged blocks and hard link them from the watershed dataset.
+		 */
+		LINK;
+	}
+
+	public static final String ATTRIBUTE = "unchangedBlocks";
+
+	public static final String SOURCE_ATTRIBUTE = "unchangedBlocksSource";
+
+	/**
+	 * Store grid positions of {@code blocks} (given by their min) in
+	 * {@code dataset}.
+	 */
+	public static void record( final String group, final String dataset, final CellGrid grid, final List< HashWrapper< long[] > > blocks ) throws IOException
+	{
+		final long[][] gridPositions = blocks
+				.stream()
+				.map( block -> Util.cellPosition( grid, block.getData().clone() ) )
+				.sorted( UnchangedBlocks::compare )
+				.toArray( long[][]::new );
+		new N5FSWriter( group ).setAttribute( dataset, ATTRIBUTE, gridPositions );
+	}
+
+	/**
+	 *
+	 * @return grid positions of unchanged blocks of {@code dataset}, empty if
+	 *         none were recorded
+	 */
+	public static long[][] read( final String group, final String dataset ) throws IOException
+	{
+		final long[][] gridPositions = new N5FSReader( group ).getAttribute( dataset, ATTRIBUTE, long[][].class );
+		return gridPositions == null ? new long[ 0 ][] : gridPositions;
+	}
+
+	/**
+	 * Hard link the block files at {@code gridPositions} of {@code source}
+	 * into {@code target}. Both datasets must have the same data type, block
+	 * size and compression.
+	 */
+	public static void link( final String group, final String source, final String target, final long[][] gridPositions ) throws IOException
+	{
+		for ( final long[] gridPosition : gridPositions )
+		{
+			final Path sourcePath = blockPath( group, source, gridPosition );
+			if ( !Files.exists( sourcePath ) )
+				continue;
+			final Path targetPath = blockPath( group, target, gridPosition );
+			Files.createDirectories( targetPath.getParent() );
+			Files.deleteIfExists( targetPath );
+			Files.createLink( targetPath, sourcePath );
+		}
+	}
+
+	/**
+	 * Delete all block files of {@code dataset} (which unlinks hard linked
+	 * blocks from their source) and remove the {@value #ATTRIBUTE} and
+	 * {@value #SOURCE_ATTRIBUTE} attributes of a previous run.
+	 */
+	public static void clear( final String group, final String dataset ) throws IOException
+	{
+		final N5FSWriter writer = new N5FSWriter( group );
+		writer.setAttribute( dataset, ATTRIBUTE, null );
+		writer.setAttribute( dataset, SOURCE_ATTRIBUTE, null );
+		final Path datasetPath = Paths.get( group, dataset );
+		final List< Path > blockFiles;
+		try (final Stream< Path > paths = Files.walk( datasetPath ))
+		{
+			blockFiles = paths
+					.filter( Files::isRegularFile )
+					.filter( path -> isBlockPath( datasetPath.relativize( path ) ) )
+					.collect( Collectors.toList() );
+		}
+		for ( final Path path : blockFiles )
+			Files.delete( path );
+	}
+
+	/**
+	 * Block files are at {@code x/y/z/...} (grid position) relative to the
+	 * dataset, anything else (attributes, nested groups) is not a block.
+	 */
+	private static boolean isBlockPath( final Path relativePath )
+	{
+		for ( final Path part : relativePath )
+			if ( !part.toString().matches( "[0-9]+" ) )
+				return false;
+		return true;
+	}
+
+	private static Path blockPath( final String group, final String dataset, final long[] gridPosition )
+	{
+		return Paths.get( group, dataset ).resolve( Paths.get( "", Arrays.stream( gridPosition ).mapToObj( Long::toString ).toArray( String[]::new ) ) );
+	}
+
+	private static int compare( final long[] p1, final long[] p2 )
+	{
+		for ( int d = p1.length - 1; d >= 0; --d )
+			if ( p1[ d ] != p2[ d ] )
+				return Long.compare( p1[ d ], p2[ d ] );
+		return 0;
+	}
+
+}
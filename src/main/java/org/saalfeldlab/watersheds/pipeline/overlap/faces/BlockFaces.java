@@ -0,0 +1,89 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.faces;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * All 2 * nDim one voxel thick faces of a watershed block. For dimension
+ * {@code d}, the lower face is the first plane of the block and the upper face
+ * is the first plane past the block (taken from the halo), i.e. the plane that
+ * coincides with the lower face of the upper neighbor. Planes are stored in
+ * flat iteration order of the face.
+ */
+public class BlockFaces implements Serializable
+{
+
+	private final long[][] lower;
+
+	private final long[][] upper;
+
+	public BlockFaces( final int nDim )
+	{
+		this( new long[ nDim ][], new long[ nDim ][] );
+	}
+
+	public BlockFaces( final long[][] lower, final long[][] upper )
+	{
+		super();
+		assert lower.length == upper.length;
+		this.lower = lower;
+		this.upper = upper;
+	}
+
+	public int numDimensions()
+	{
+		return lower.length;
+	}
+
+	public long[] lower( final int dimension )
+	{
+		return lower[ dimension ];
+	}
+
+	public long[] upper( final int dimension )
+	{
+		return upper[ dimension ];
+	}
+
+	public void setLower( final int dimension, final long[] data )
+	{
+		lower[ dimension ] = data;
+	}
+
+	public void setUpper( final int dimension, final long[] data )
+	{
+		upper[ dimension ] = data;
+	}
+
+	/**
+	 * @return faces encoded with {@link LabelPlaneCodec}
+	 */
+	public byte[] toBytes()
+	{
+		final LabelPlaneCodec.Output output = new LabelPlaneCodec.Output( 64 * lower.length );
+		output.writeVarLong( lower.length );
+		for ( int d = 0; d < lower.length; ++d )
+		{
+			LabelPlaneCodec.encode( lower[ d ], output );
+			LabelPlaneCodec.encode( upper[ d ], output );
+		}
+		return output.toByteArray();
+	}
+
+	public static BlockFaces fromBytes( final byte[] bytes )
+	{
+		return fromBytes( ByteBuffer.wrap( bytes ) );
+	}
+
+	public static BlockFaces fromBytes( final ByteBuffer buffer )
+	{
+		final BlockFaces faces = new BlockFaces( ( int ) LabelPlaneCodec.readVarLong( buffer ) );
+		for ( int d = 0; d < faces.numDimensions(); ++d )
+		{
+			faces.setLower( d, LabelPlaneCodec.decode( buffer ) );
+			faces.setUpper( d, LabelPlaneCodec.decode( buffer ) );
+		}
+		return faces;
+	}
+
+}
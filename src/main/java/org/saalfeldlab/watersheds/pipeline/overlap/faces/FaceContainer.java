@@ -0,0 +1,176 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.faces;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import scala.Tuple2;
+
+/**
+ * Stores {@link BlockFaces} of all blocks below a common root directory.
+ * Blocks are grouped into shards of {@code blocksPerShard} blocks (per
+ * dimension) and each shard is stored in a single file (indexed by shard
+ * position) with layout
+ *
+ * <pre>
+ * int numBlocks
+ * int nDim
+ * numBlocks x ( long[nDim] cellPosition, long offset, int length )
+ * numBlocks x encoded faces
+ * </pre>
+ *
+ * Faces are encoded with {@link LabelPlaneCodec}. Shards are written once, as
+ * a whole, and read through memory mapped files.
+ */
+public class FaceContainer implements Serializable
+{
+
+	public static final int DEFAULT_BLOCKS_PER_SHARD = 4;
+
+	private static final int MAX_OPEN_SHARDS = 16;
+
+	private final String root;
+
+	private final int[] blocksPerShard;
+
+	private transient Map< String, MappedByteBuffer > openShards;
+
+	public FaceContainer( final String root, final int nDim )
+	{
+		this( root, IntStream.generate( () -> DEFAULT_BLOCKS_PER_SHARD ).limit( nDim ).toArray() );
+	}
+
+	public FaceContainer( final String root, final int[] blocksPerShard )
+	{
+		super();
+		this.root = root;
+		this.blocksPerShard = blocksPerShard;
+	}
+
+	/**
+	 *
+	 * @param step
+	 *            size of superblocks (in blocks)
+	 * @return container with one shard per superblock of size {@code step}
+	 */
+	public FaceContainer forLevel( final int step )
+	{
+		return new FaceContainer( root + "/level-" + step, IntStream.generate( () -> step ).limit( blocksPerShard.length ).toArray() );
+	}
+
+	public long[] shardPosition( final long[] cellPosition )
+	{
+		final long[] shardPosition = new long[ cellPosition.length ];
+		Arrays.setAll( shardPosition, d -> cellPosition[ d ] / blocksPerShard[ d ] );
+		return shardPosition;
+	}
+
+	/**
+	 * Write all blocks of a shard.
+	 *
+	 * @param shardPosition
+	 * @param blocks
+	 *            {@code (cellPosition, encoded faces)} for all blocks in the
+	 *            shard, see {@link BlockFaces#toBytes()}
+	 */
+	public void writeShard( final long[] shardPosition, final Iterable< Tuple2< long[], byte[] > > blocks ) throws IOException
+	{
+		final List< Tuple2< long[], byte[] > > blockList = new ArrayList<>();
+		blocks.forEach( blockList::add );
+		final int nDim = shardPosition.length;
+		final int indexEntrySize = nDim * Long.BYTES + Long.BYTES + Integer.BYTES;
+		final long headerSize = 2 * Integer.BYTES + blockList.size() * indexEntrySize;
+
+		final ByteBuffer header = ByteBuffer.allocate( ( int ) headerSize );
+		header.putInt( blockList.size() );
+		header.putInt( nDim );
+		long offset = headerSize;
+		for ( final Tuple2< long[], byte[] > block : blockList )
+		{
+			for ( final long p : block._1() )
+				header.putLong( p );
+			header.putLong( offset );
+			header.putInt( block._2().length );
+			offset += block._2().length;
+		}
+
+		// write to temporary file first so retried tasks do not leave
+		// partially written shards behind
+		final File f = new File( path( shardPosition ) );
+		f.getParentFile().mkdirs();
+		final File tmp = new File( f.getParentFile(), "." + f.getName() + "." + System.nanoTime() );
+		try (final FileOutputStream fos = new FileOutputStream( tmp ))
+		{
+			fos.write( header.array() );
+			for ( final Tuple2< long[], byte[] > block : blockList )
+				fos.write( block._2() );
+		}
+		Files.move( tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	public BlockFaces read( final long[] cellPosition ) throws IOException
+	{
+		final ByteBuffer shard = openShard( path( shardPosition( cellPosition ) ) ).duplicate();
+		final int numBlocks = shard.getInt();
+		final int nDim = shard.getInt();
+		for ( int i = 0; i < numBlocks; ++i )
+		{
+			boolean matches = true;
+			for ( int d = 0; d < nDim; ++d )
+				matches &= shard.getLong() == cellPosition[ d ];
+			final long offset = shard.getLong();
+			final int length = shard.getInt();
+			if ( matches )
+			{
+				shard.position( ( int ) offset );
+				shard.limit( ( int ) offset + length );
+				return BlockFaces.fromBytes( shard.slice() );
+			}
+		}
+		throw new IOException( "Block " + Arrays.toString( cellPosition ) + " not present in shard " + path( shardPosition( cellPosition ) ) );
+	}
+
+	private MappedByteBuffer openShard( final String path ) throws IOException
+	{
+		if ( openShards == null )
+			openShards = new LinkedHashMap< String, MappedByteBuffer >( MAX_OPEN_SHARDS, 0.75f, true )
+			{
+				@Override
+				protected boolean removeEldestEntry( final Map.Entry< String, MappedByteBuffer > eldest )
+				{
+					return size() > MAX_OPEN_SHARDS;
+				}
+			};
+
+		MappedByteBuffer shard = openShards.get( path );
+		if ( shard == null )
+		{
+			try (final FileChannel channel = FileChannel.open( new File( path ).toPath(), StandardOpenOption.READ ))
+			{
+				shard = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			}
+			openShards.put( path, shard );
+		}
+		return shard;
+	}
+
+	private String path( final long[] shardPosition )
+	{
+		return root + "/" + Arrays.stream( shardPosition ).mapToObj( Long::toString ).collect( Collectors.joining( "/" ) );
+	}
+
+}
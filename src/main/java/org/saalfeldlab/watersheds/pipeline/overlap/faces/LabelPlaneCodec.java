@@ -0,0 +1,115 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.faces;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Run-length encoding of label planes. A plane is stored as its length
+ * followed by {@code (label delta, run length)} pairs, where the label delta
+ * is taken with respect to the label of the previous run. All numbers are
+ * stored as variable length integers (7 bits per byte), label deltas are zig
+ * zag encoded. Faces of watershed blocks consist of few long runs of the same
+ * label, so this typically shrinks a plane by orders of magnitude.
+ */
+public class LabelPlaneCodec
+{
+
+	public static void encode( final long[] plane, final Output output )
+	{
+		output.writeVarLong( plane.length );
+		long previousLabel = 0;
+		for ( int start = 0; start < plane.length; )
+		{
+			final long label = plane[ start ];
+			int end = start + 1;
+			while ( end < plane.length && plane[ end ] == label )
+				++end;
+			output.writeVarLong( zigZag( label - previousLabel ) );
+			output.writeVarLong( end - start );
+			previousLabel = label;
+			start = end;
+		}
+	}
+
+	public static long[] decode( final ByteBuffer input )
+	{
+		final long[] plane = new long[ ( int ) readVarLong( input ) ];
+		long label = 0;
+		for ( int start = 0; start < plane.length; )
+		{
+			label += unZigZag( readVarLong( input ) );
+			final int end = start + ( int ) readVarLong( input );
+			Arrays.fill( plane, start, end, label );
+			start = end;
+		}
+		return plane;
+	}
+
+	public static long readVarLong( final ByteBuffer input )
+	{
+		long value = 0;
+		for ( int shift = 0;; shift += 7 )
+		{
+			final byte b = input.get();
+			value |= ( b & 0x7fL ) << shift;
+			if ( ( b & 0x80 ) == 0 )
+				return value;
+		}
+	}
+
+	private static long zigZag( final long value )
+	{
+		return value << 1 ^ value >> 63;
+	}
+
+	private static long unZigZag( final long value )
+	{
+		return value >>> 1 ^ -( value & 1 );
+	}
+
+	/**
+	 * Growable byte array for encoding.
+	 */
+	public static class Output
+	{
+
+		private byte[] data;
+
+		private int size;
+
+		public Output( final int initialCapacity )
+		{
+			this.data = new byte[ Math.max( initialCapacity, 16 ) ];
+			this.size = 0;
+		}
+
+		public void writeVarLong( long value )
+		{
+			ensureCapacity( size + 10 );
+			while ( ( value & ~0x7fL ) != 0 )
+			{
+				data[ size++ ] = ( byte ) ( value & 0x7f | 0x80 );
+				value >>>= 7;
+			}
+			data[ size++ ] = ( byte ) value;
+		}
+
+		public int size()
+		{
+			return size;
+		}
+
+		public byte[] toByteArray()
+		{
+			return Arrays.copyOf( data, size );
+		}
+
+		private void ensureCapacity( final int capacity )
+		{
+			if ( capacity > data.length )
+				data = Arrays.copyOf( data, Math.max( capacity, 2 * data.length ) );
+		}
+
+	}
+
+}
@@ -0,0 +1,205 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.global;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.broadcast.Broadcast;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.saalfeldlab.watersheds.Util;
+import org.saalfeldlab.watersheds.pipeline.LongArrayBlocks;
+import org.saalfeldlab.watersheds.pipeline.WritePartition;
+import org.saalfeldlab.watersheds.pipeline.overlap.UnchangedBlocks;
+import org.saalfeldlab.watersheds.pipeline.overlap.hierarchical.HierarchicalUnionFindInOverlaps;
+
+import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import scala.Tuple2;
+
+public class ApplyGlobalUnionFind
+{
+
+	/**
+	 * Fragment to segment mapping relevant for a block. Keys must be sorted,
+	 * fragments that are not contained are mapped onto themselves.
+	 */
+	public interface Mapping extends Serializable
+	{
+		public Tuple2< long[], long[] > get( long[] cellPosition ) throws IOException;
+	}
+
+	public static class BroadcastMapping implements Mapping
+	{
+
+		private final Broadcast< Tuple2< long[], long[] > > mapping;
+
+		public BroadcastMapping( final Broadcast< Tuple2< long[], long[] > > mapping )
+		{
+			super();
+			this.mapping = mapping;
+		}
+
+		@Override
+		public Tuple2< long[], long[] > get( final long[] cellPosition )
+		{
+			return mapping.getValue();
+		}
+
+	}
+
+	public static class FileMapping implements Mapping
+	{
+
+		private final Function< long[], String > serializationPattern;
+
+		public FileMapping( final Function< long[], String > serializationPattern )
+		{
+			super();
+			this.serializationPattern = serializationPattern;
+		}
+
+		@Override
+		public Tuple2< long[], long[] > get( final long[] cellPosition ) throws IOException
+		{
+			final String fileName = serializationPattern.apply( cellPosition );
+			return new File( fileName ).exists() ? HierarchicalUnionFindInOverlaps.readFromFile( fileName ) : new Tuple2<>( new long[ 0 ], new long[ 0 ] );
+		}
+
+	}
+
+	public static void apply(
+			final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > blocks,
+			final Broadcast< CellGrid > gridBC,
+			final String group,
+			final String mergedDataset,
+			final Mapping mapping,
+			final boolean skipUnchanged ) throws IOException
+	{
+		final List< HashWrapper< long[] > > unchanged = new ArrayList<>();
+		WritePartition.write( blocks, new WritePartition<>( group, mergedDataset, new DoIt( gridBC, mapping, skipUnchanged ), 0, 0 ), unchanged );
+		if ( skipUnchanged )
+			UnchangedBlocks.record( group, mergedDataset, gridBC.getValue(), unchanged );
+	}
+
+	/**
+	 * Restrict the global {@code (id, root)} mapping to the ids present in
+	 * each block and store it in a (sorted) file per block.
+	 */
+	public static void writeBlockMappings(
+			final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > blocks,
+			final Broadcast< CellGrid > gridBC,
+			final JavaPairRDD< Long, Long > components,
+			final Function< long[], String > serializationPattern )
+	{
+		blocks
+		.flatMapToPair( t -> {
+			final CellGrid grid = gridBC.getValue();
+			final FinalInterval fi = coreInterval( grid, t._1().getData() );
+			final TLongHashSet labels = new TLongHashSet();
+			for ( final UnsignedLongType l : Views.interval( t._2(), fi ) )
+				if ( l.getIntegerLong() != 0 )
+					labels.add( l.getIntegerLong() );
+			final HashWrapper< long[] > cellPos = HashWrapper.longArray( Util.cellPosition( grid, t._1().getData().clone() ) );
+			final List< Tuple2< Long, HashWrapper< long[] > > > labelsInBlock = new ArrayList<>();
+			for ( final TLongIterator it = labels.iterator(); it.hasNext(); )
+				labelsInBlock.add( new Tuple2<>( it.next(), cellPos ) );
+			return labelsInBlock.iterator();
+		} )
+		.join( components )
+		.mapToPair( t -> new Tuple2<>( t._2()._1(), new Tuple2<>( t._1(), t._2()._2() ) ) )
+		.groupByKey()
+		.foreach( t -> {
+			final List< Tuple2< Long, Long > > assignments = new ArrayList<>();
+			t._2().forEach( assignments::add );
+			assignments.sort( ( a1, a2 ) -> Long.compare( a1._1(), a2._1() ) );
+			final long[] keys = assignments.stream().mapToLong( a -> a._1() ).toArray();
+			final long[] roots = assignments.stream().mapToLong( a -> a._2() ).toArray();
+			HierarchicalUnionFindInOverlaps.writeToFile( serializationPattern.apply( t._1().getData() ), keys, roots );
+		} );
+	}
+
+	private static FinalInterval coreInterval( final CellGrid grid, final long[] blockMin )
+	{
+		final long[] min = blockMin.clone();
+		final long[] max = new long[ min.length ];
+		for ( int d = 0; d < max.length; ++d )
+			max[ d ] = Math.min( min[ d ] + grid.cellDimension( d ), grid.imgDimension( d ) ) - 1;
+		return new FinalInterval( min, max );
+	}
+
+	public static final class DoIt implements WritePartition.BlockWriter< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > >
+	{
+
+		private final Broadcast< CellGrid > grid;
+
+		private final Mapping mapping;
+
+		private final boolean skipUnchanged;
+
+		/**
+		 *
+		 * @param skipUnchanged
+		 *            do not write blocks whose labels are all their own roots
+		 *            (see {@link UnchangedBlocks})
+		 */
+		public DoIt( final Broadcast< CellGrid > grid, final Mapping mapping, final boolean skipUnchanged )
+		{
+			super();
+			this.grid = grid;
+			this.mapping = mapping;
+			this.skipUnchanged = skipUnchanged;
+		}
+
+		@Override
+		public DataBlock< ? > dataBlock( final DatasetAttributes attrsOut, final Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > watershedBlock ) throws Exception
+		{
+			final CellGrid grid = this.grid.getValue();
+
+			final long[] cellPos = Util.cellPosition( grid, watershedBlock._1().getData().clone() );
+			final Tuple2< long[], long[] > mapping = this.mapping.get( cellPos );
+			final long[] keys = mapping._1();
+			final long[] roots = mapping._2();
+
+			final FinalInterval fi = coreInterval( grid, watershedBlock._1().getData() );
+			final int[] dataBlockSize = Intervals.dimensionsAsIntArray( fi );
+			final long[] dataArray = LongArrayBlocks.copy( watershedBlock._2(), fi );
+			long lastLabel = 0;
+			long lastRoot = 0;
+			boolean isChanged = false;
+			for ( int i = 0; i < dataArray.length; ++i )
+			{
+				final long v = dataArray[ i ];
+				if ( v != 0 )
+				{
+					if ( v != lastLabel )
+					{
+						final int index = Arrays.binarySearch( keys, v );
+						lastLabel = v;
+						lastRoot = index < 0 ? v : roots[ index ];
+						isChanged |= lastRoot != v;
+					}
+					dataArray[ i ] = lastRoot;
+				}
+			}
+			if ( skipUnchanged && !isChanged )
+				return null;
+			return new LongArrayDataBlock( dataBlockSize, cellPos, dataArray );
+		}
+
+	}
+
+}
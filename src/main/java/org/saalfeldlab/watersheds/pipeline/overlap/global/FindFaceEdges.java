@@ -0,0 +1,63 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.global;
+
+
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.broadcast.Broadcast;
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
+import org.saalfeldlab.watersheds.Util;
+import org.saalfeldlab.watersheds.pipeline.overlap.faces.BlockFaces;
+import org.saalfeldlab.watersheds.pipeline.overlap.faces.FaceContainer;
+import org.saalfeldlab.watersheds.pipeline.overlap.match.OverlapMatcher;
+
+import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
+import net.imglib2.img.cell.CellGrid;
+import scala.Tuple2;
+
+/**
+ * Match all faces between a block and its upper neighbors (in every
+ * dimension) and return the resulting equivalences as {@code (id, root)}
+ * edges.
+ */
+public class FindFaceEdges implements Function< HashWrapper< long[] >, Tuple2< long[], long[] > >
+{
+
+	private final FaceContainer faces;
+
+	private final Broadcast< CellGrid > gridBC;
+
+	private final OverlapMatcher matcher;
+
+	public FindFaceEdges(
+			final FaceContainer faces,
+			final Broadcast< CellGrid > gridBC,
+			final OverlapMatcher matcher )
+	{
+		super();
+		this.faces = faces;
+		this.gridBC = gridBC;
+		this.matcher = matcher;
+	}
+
+	@Override
+	public Tuple2< long[], long[] > call( final HashWrapper< long[] > blockMinimum ) throws Exception
+	{
+		final CellGrid grid = gridBC.getValue();
+		final long[] cellPos = Util.cellPosition( grid, blockMinimum.getData().clone() );
+		final BlockFaces blockFaces = faces.read( cellPos );
+		final UnionFindSparseCompact uf = new UnionFindSparseCompact();
+
+		for ( int d = 0; d < cellPos.length; ++d )
+		{
+			if ( cellPos[ d ] + 1 >= grid.gridDimension( d ) )
+				continue;
+
+			final long[] otherCellPos = cellPos.clone();
+			otherCellPos[ d ] += 1;
+			final long[] lowerForOtherBlock = faces.read( otherCellPos ).lower( d );
+			matcher.accept( new Tuple2<>( lowerForOtherBlock, blockFaces.upper( d ) ), uf );
+		}
+
+		return GlobalUnionFindInOverlaps.edges( uf );
+	}
+
+}
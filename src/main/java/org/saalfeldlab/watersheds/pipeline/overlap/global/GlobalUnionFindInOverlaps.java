@@ -0,0 +1,163 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.global;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.storage.StorageLevel;
+import org.saalfeldlab.watersheds.UnionFindConcurrent;
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
+import org.saalfeldlab.watersheds.Util;
+import org.saalfeldlab.watersheds.pipeline.overlap.faces.FaceContainer;
+import org.saalfeldlab.watersheds.pipeline.overlap.match.OverlapMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import scala.Tuple2;
+
+/**
+ * Merge blocks by collecting all equivalences across block faces once and
+ * solving connected components in a single step, instead of one union find
+ * per level as in
+ * {@link org.saalfeldlab.watersheds.pipeline.overlap.hierarchical.HierarchicalUnionFindInOverlaps}.
+ * Connected components are solved on the driver if the number of edges does
+ * not exceed {@code maxDriverEdges}, and with {@link LargeStarSmallStar}
+ * otherwise.
+ */
+public class GlobalUnionFindInOverlaps
+{
+
+	private static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
+
+	public static void merge(
+			final JavaSparkContext sc,
+			final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > blocks,
+			final CellGrid grid,
+			final OverlapMatcher matcher,
+			final String group,
+			final String tmpGroup,
+			final FaceContainer faces,
+			final String mergedDataset,
+			final long maxDriverEdges,
+			final int nThreads,
+			final boolean skipUnchanged ) throws IOException, InterruptedException, ExecutionException
+	{
+		final Broadcast< CellGrid > gridBC = sc.broadcast( grid );
+		final JavaRDD< Tuple2< long[], long[] > > edges = findEdges( sc, gridBC, matcher, faces );
+		solveAndApply( sc, edges, blocks, gridBC, group, tmpGroup, mergedDataset, maxDriverEdges, nThreads, skipUnchanged );
+	}
+
+	public static JavaRDD< Tuple2< long[], long[] > > findEdges(
+			final JavaSparkContext sc,
+			final Broadcast< CellGrid > gridBC,
+			final OverlapMatcher matcher,
+			final FaceContainer faces )
+	{
+		final CellGrid grid = gridBC.getValue();
+		final int[] blockSize = IntStream.range( 0, grid.numDimensions() ).map( grid::cellDimension ).toArray();
+		final List< HashWrapper< long[] > > blocks = Util.collectAllOffsets( grid.getImgDimensions(), blockSize, HashWrapper::longArray );
+		return sc
+				.parallelize( blocks )
+				.map( new FindFaceEdges( faces, gridBC, matcher ) );
+	}
+
+	public static void solveAndApply(
+			final JavaSparkContext sc,
+			final JavaRDD< Tuple2< long[], long[] > > edges,
+			final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > blocks,
+			final Broadcast< CellGrid > gridBC,
+			final String group,
+			final String tmpGroup,
+			final String mergedDataset,
+			final long maxDriverEdges,
+			final int nThreads,
+			final boolean skipUnchanged ) throws IOException, InterruptedException, ExecutionException
+	{
+		edges.persist( StorageLevel.MEMORY_AND_DISK() );
+		final long edgeCount = edges.map( t -> ( long ) t._1().length ).fold( 0L, Long::sum );
+		LOG.info( "Found {} equivalence edges across blocks.", edgeCount );
+
+		if ( edgeCount <= maxDriverEdges )
+		{
+			final Tuple2< long[], long[] > mapping = UnionFindConcurrent.joinAll( edges.collect(), Math.max( nThreads, 1 ) );
+			LOG.info( "Solved connected components for {} fragments on driver.", mapping._1().length );
+			ApplyGlobalUnionFind.apply( blocks, gridBC, group, mergedDataset, new ApplyGlobalUnionFind.BroadcastMapping( sc.broadcast( mapping ) ), skipUnchanged );
+		}
+		else
+		{
+			LOG.info( "More than {} edges, solving connected components distributed.", maxDriverEdges );
+			final JavaPairRDD< Long, Long > components = LargeStarSmallStar.connectedComponents(
+					edges.flatMapToPair( GlobalUnionFindInOverlaps::edgePairs ),
+					StorageLevel.MEMORY_AND_DISK() );
+			final MappingSerializationPattern pattern = new MappingSerializationPattern( tmpGroup );
+			ApplyGlobalUnionFind.writeBlockMappings( blocks, gridBC, components, pattern );
+			components.unpersist();
+			ApplyGlobalUnionFind.apply( blocks, gridBC, group, mergedDataset, new ApplyGlobalUnionFind.FileMapping( pattern ), skipUnchanged );
+		}
+		edges.unpersist();
+	}
+
+	/**
+	 * @return all {@code (id, root)} pairs with {@code id != root}
+	 */
+	public static Tuple2< long[], long[] > edges( final UnionFindSparseCompact uf )
+	{
+		final long[] keys = uf.keys();
+		final long[] roots = uf.roots();
+		int size = 0;
+		for ( int i = 0; i < keys.length; ++i )
+			if ( keys[ i ] != roots[ i ] )
+			{
+				keys[ size ] = keys[ i ];
+				roots[ size ] = roots[ i ];
+				++size;
+			}
+		return new Tuple2<>( Arrays.copyOf( keys, size ), Arrays.copyOf( roots, size ) );
+	}
+
+	private static Iterator< Tuple2< Long, Long > > edgePairs( final Tuple2< long[], long[] > edges )
+	{
+		final long[] ids1 = edges._1();
+		final long[] ids2 = edges._2();
+		final List< Tuple2< Long, Long > > pairs = new ArrayList<>( ids1.length );
+		for ( int i = 0; i < ids1.length; ++i )
+			pairs.add( new Tuple2<>( ids1[ i ], ids2[ i ] ) );
+		return pairs.iterator();
+	}
+
+	public static class MappingSerializationPattern implements Function< long[], String >, Serializable
+	{
+
+		private final String group;
+
+		public MappingSerializationPattern( final String group )
+		{
+			super();
+			this.group = group;
+		}
+
+		@Override
+		public String apply( final long[] position )
+		{
+			return group + "/unionfind/global/" + Arrays.stream( position ).mapToObj( Long::toString ).collect( Collectors.joining( "/" ) );
+		}
+
+	}
+
+}
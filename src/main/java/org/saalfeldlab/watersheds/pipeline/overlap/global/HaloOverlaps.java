@@ -0,0 +1,143 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.global;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.function.PairFlatMapFunction;
+import org.apache.spark.broadcast.Broadcast;
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
+import org.saalfeldlab.watersheds.Util;
+import org.saalfeldlab.watersheds.pipeline.overlap.match.OverlapMatcher;
+
+import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import scala.Tuple2;
+
+/**
+ * Find equivalences across blocks in the overlap of the halos of
+ * neighboring blocks. Both blocks send their labels in the overlap through a
+ * shuffle keyed by the face, i.e. the position of the lower block and the
+ * dimension, so nothing is written to disk.
+ */
+public class HaloOverlaps
+{
+
+	public static JavaRDD< Tuple2< long[], long[] > > findEdges(
+			final JavaPairRDD< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > blocks,
+			final Broadcast< CellGrid > gridBC,
+			final int halo,
+			final OverlapMatcher matcher )
+	{
+		return blocks
+				.flatMapToPair( new ExtractOverlaps( gridBC, halo ) )
+				.groupByKey()
+				.map( face -> {
+					long[] fromLowerBlock = null;
+					long[] fromUpperBlock = null;
+					for ( final Tuple2< Boolean, long[] > side : face._2() )
+						if ( side._1() )
+							fromLowerBlock = side._2();
+						else
+							fromUpperBlock = side._2();
+					final UnionFindSparseCompact uf = new UnionFindSparseCompact();
+					if ( fromLowerBlock != null && fromUpperBlock != null )
+						matcher.accept( new Tuple2<>( fromUpperBlock, fromLowerBlock ), uf );
+					return GlobalUnionFindInOverlaps.edges( uf );
+				} );
+	}
+
+	/**
+	 * For each face of a block, emit the labels in the halo overlap with the
+	 * neighboring block. Faces are keyed by the cell position of the lower
+	 * block and the dimension, the value flags if the labels come from the
+	 * lower block.
+	 */
+	public static class ExtractOverlaps implements PairFlatMapFunction< Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > >, HashWrapper< long[] >, Tuple2< Boolean, long[] > >
+	{
+
+		private final Broadcast< CellGrid > gridBC;
+
+		private final int halo;
+
+		public ExtractOverlaps( final Broadcast< CellGrid > gridBC, final int halo )
+		{
+			super();
+			this.gridBC = gridBC;
+			this.halo = halo;
+		}
+
+		@Override
+		public Iterator< Tuple2< HashWrapper< long[] >, Tuple2< Boolean, long[] > > > call( final Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > t ) throws Exception
+		{
+			final CellGrid grid = gridBC.getValue();
+			final RandomAccessibleInterval< UnsignedLongType > rai = t._2();
+			final long[] blockMin = t._1().getData();
+			final long[] cellPos = Util.cellPosition( grid, blockMin.clone() );
+			final int nDim = cellPos.length;
+			final List< Tuple2< HashWrapper< long[] >, Tuple2< Boolean, long[] > > > faces = new ArrayList<>();
+
+			for ( int d = 0; d < nDim; ++d )
+			{
+				// this block is lower block of face
+				if ( cellPos[ d ] + 1 < grid.gridDimension( d ) )
+				{
+					final long boundary = ( cellPos[ d ] + 1 ) * grid.cellDimension( d );
+					faces.add( new Tuple2<>( faceKey( cellPos, d ), new Tuple2<>( true, overlap( rai, grid, blockMin, d, boundary ) ) ) );
+				}
+
+				// this block is upper block of face
+				if ( cellPos[ d ] > 0 )
+				{
+					final long[] lowerCellPos = cellPos.clone();
+					lowerCellPos[ d ] -= 1;
+					faces.add( new Tuple2<>( faceKey( lowerCellPos, d ), new Tuple2<>( false, overlap( rai, grid, blockMin, d, blockMin[ d ] ) ) ) );
+				}
+			}
+
+			return faces.iterator();
+		}
+
+		private long[] overlap(
+				final RandomAccessibleInterval< UnsignedLongType > rai,
+				final CellGrid grid,
+				final long[] blockMin,
+				final int dimension,
+				final long boundary )
+		{
+			// core of block orthogonal to dimension, halo on both sides of
+			// boundary along dimension
+			final long[] min = blockMin.clone();
+			final long[] max = new long[ min.length ];
+			for ( int d = 0; d < max.length; ++d )
+				max[ d ] = Math.min( min[ d ] + grid.cellDimension( d ), grid.imgDimension( d ) ) - 1;
+			min[ dimension ] = Math.max( boundary - halo, 0 );
+			max[ dimension ] = Math.min( boundary + halo, grid.imgDimension( dimension ) ) - 1;
+			final FinalInterval interval = new FinalInterval( min, max );
+
+			final long[] data = new long[ ( int ) Intervals.numElements( interval ) ];
+			final Cursor< UnsignedLongType > c = Views.flatIterable( Views.interval( rai, interval ) ).cursor();
+			for ( int i = 0; c.hasNext(); ++i )
+				data[ i ] = c.next().getIntegerLong();
+			return data;
+		}
+
+		private static HashWrapper< long[] > faceKey( final long[] cellPos, final int dimension )
+		{
+			final long[] key = Arrays.copyOf( cellPos, cellPos.length + 1 );
+			key[ cellPos.length ] = dimension;
+			return HashWrapper.longArray( key );
+		}
+
+	}
+
+}
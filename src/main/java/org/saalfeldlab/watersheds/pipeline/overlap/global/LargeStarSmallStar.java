@@ -0,0 +1,121 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.global;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.spark.SparkContext;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.LongAccumulator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scala.Tuple2;
+
+/**
+ * Distributed connected components on an edge list, following the
+ * alternating large-star/small-star scheme of Kiveris et al., "Connected
+ * Components in MapReduce and Beyond" (2014). Each iteration shrinks the
+ * components towards stars centered at their smallest id. Both steps count
+ * the edges they replace, and iteration stops once neither step replaces an
+ * edge, i.e. all components are stars. Recomputed tasks may count edges
+ * again, which only matters for the logged numbers, not for convergence.
+ */
+public class LargeStarSmallStar
+{
+
+	private static final Logger LOG = LoggerFactory.getLogger( MethodHandles.lookup().lookupClass() );
+
+	/**
+	 *
+	 * @param edges
+	 *            undirected edges
+	 * @return {@code (id, root)} for every id that is not the smallest id
+	 *         (root) of its component
+	 */
+	public static JavaPairRDD< Long, Long > connectedComponents( final JavaPairRDD< Long, Long > edges, final StorageLevel storageLevel )
+	{
+		JavaPairRDD< Long, Long > current = edges
+				.filter( e -> e._1().longValue() != e._2().longValue() )
+				.mapToPair( LargeStarSmallStar::largerFirst )
+				.distinct()
+				.persist( storageLevel );
+		LOG.info( "Running connected components on {} edges.", current.count() );
+
+		final SparkContext sc = edges.context();
+		for ( int iteration = 0;; ++iteration )
+		{
+			final LongAccumulator largeStarChanges = sc.longAccumulator();
+			final LongAccumulator smallStarChanges = sc.longAccumulator();
+			final JavaPairRDD< Long, Long > next = smallStar( largeStar( current, largeStarChanges ), smallStarChanges ).persist( storageLevel );
+			final long count = next.count();
+			LOG.info( "Connected components iteration {}: {} edges, {} replaced in large-star and {} in small-star step.", iteration, count, largeStarChanges.value(), smallStarChanges.value() );
+			current.unpersist();
+			current = next;
+			if ( largeStarChanges.value() == 0 && smallStarChanges.value() == 0 )
+				break;
+		}
+
+		return current;
+	}
+
+	/**
+	 * Connect all larger neighbors of each node to the smallest id in its
+	 * neighborhood. Adds the number of edges connected to a smaller id than
+	 * before to {@code changes}.
+	 */
+	private static JavaPairRDD< Long, Long > largeStar( final JavaPairRDD< Long, Long > edges, final LongAccumulator changes )
+	{
+		return edges
+				.flatMapToPair( e -> Arrays.asList( e, e.swap() ).iterator() )
+				.groupByKey()
+				.flatMapToPair( t -> {
+					final long u = t._1();
+					long m = u;
+					for ( final Long v : t._2() )
+						m = Math.min( m, v );
+					final List< Tuple2< Long, Long > > connected = new ArrayList<>();
+					for ( final Long v : t._2() )
+						if ( v > u )
+							connected.add( new Tuple2<>( v, m ) );
+					if ( m != u )
+						changes.add( connected.size() );
+					return connected.iterator();
+				} )
+				.distinct();
+	}
+
+	/**
+	 * Connect each node and its smaller neighbors to the smallest id in its
+	 * neighborhood. Adds the number of edges connected to a different id than
+	 * before to {@code changes}.
+	 */
+	private static JavaPairRDD< Long, Long > smallStar( final JavaPairRDD< Long, Long > edges, final LongAccumulator changes )
+	{
+		return edges
+				.mapToPair( LargeStarSmallStar::largerFirst )
+				.groupByKey()
+				.flatMapToPair( t -> {
+					final long u = t._1();
+					long m = u;
+					for ( final Long v : t._2() )
+						m = Math.min( m, v );
+					final List< Tuple2< Long, Long > > connected = new ArrayList<>();
+					connected.add( new Tuple2<>( u, m ) );
+					for ( final Long v : t._2() )
+						if ( v != m )
+							connected.add( new Tuple2<>( v, m ) );
+					changes.add( connected.size() - 1 );
+					return connected.iterator();
+				} )
+				.distinct();
+	}
+
+	private static Tuple2< Long, Long > largerFirst( final Tuple2< Long, Long > e )
+	{
+		return e._1() > e._2() ? e : e.swap();
+	}
+
+}
@@ -1,30 +1,28 @@
 package org.saalfeldlab.watersheds.pipeline.overlap.hierarchical;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.nio.ByteBuffer;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.List;
 import java.util.function.BiFunction;
 import java.util.stream.IntStream;
 
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaSparkContext;
-import org.apache.spark.api.java.function.Function;
 import org.apache.spark.broadcast.Broadcast;
+import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
-import org.saalfeldlab.watersheds.UnionFindSparse;
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
+import org.saalfeldlab.watersheds.pipeline.LongArrayBlocks;
+import org.saalfeldlab.watersheds.pipeline.WritePartition;
+import org.saalfeldlab.watersheds.pipeline.overlap.UnchangedBlocks;
 
 import bdv.bigcat.viewer.viewer3d.util.HashWrapper;
-import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.numeric.integer.UnsignedLongType;
 import net.imglib2.util.Intervals;
-import net.imglib2.view.Views;
 import scala.Tuple2;
 
 public class ApplyHierarchicalUnionFind
@@ -36,25 +34,26 @@ public class ApplyHierarchicalUnionFind
 			final CellGrid grid,
 			final String group,
 			final String mergedBlocksDataset,
-			final BiFunction< Integer, long[], String > unionFindSerializationPattern )
+			final BiFunction< Integer, long[], String > unionFindSerializationPattern,
+			final boolean skipUnchanged ) throws IOException
 	{
 
 		final long[] dims = grid.getImgDimensions();
 		final int[] blockSize = IntStream.range( 0, dims.length ).map( grid::cellDimension ).toArray();
 		final int multiplier = 2;
 
-		watershedBlocks.map( new DoIt( sc, group, mergedBlocksDataset, grid, dims, blockSize, multiplier, unionFindSerializationPattern ) ).count();
-
-
+		final List< HashWrapper< long[] > > unchanged = new ArrayList<>();
+		WritePartition.write(
+				watershedBlocks,
+				new WritePartition<>( group, mergedBlocksDataset, new DoIt( sc, grid, dims, blockSize, multiplier, unionFindSerializationPattern, skipUnchanged ), 0, 0 ),
+				unchanged );
+		if ( skipUnchanged )
+			UnchangedBlocks.record( group, mergedBlocksDataset, grid, unchanged );
 	}
 
-	public static final class DoIt implements Function< Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > >, Boolean >
+	public static final class DoIt implements WritePartition.BlockWriter< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > >
 	{
 
-		private final String group;
-
-		private final String dataset;
-
 		private final Broadcast< CellGrid > grid;
 
 		private final long[] dims;
@@ -65,29 +64,34 @@ public class ApplyHierarchicalUnionFind
 
 		private final BiFunction< Integer, long[], String > serializationPattern;
 
-		public DoIt( final JavaSparkContext sc, final String group, final String dataset, final CellGrid grid, final long[] dims, final int[] blockSize, final int multiplier, final BiFunction< Integer, long[], String > serializationPattern )
+		private final boolean skipUnchanged;
+
+		/**
+		 *
+		 * @param skipUnchanged
+		 *            do not write blocks whose labels are all their own roots
+		 *            (see {@link UnchangedBlocks})
+		 */
+		public DoIt( final JavaSparkContext sc, final CellGrid grid, final long[] dims, final int[] blockSize, final int multiplier, final BiFunction< Integer, long[], String > serializationPattern, final boolean skipUnchanged )
 		{
 			super();
-			this.group = group;
-			this.dataset = dataset;
 			this.grid = sc.broadcast( grid );
 			this.dims = dims;
 			this.blockSize = blockSize;
 			this.multiplier = multiplier;
 			this.serializationPattern = serializationPattern;
+			this.skipUnchanged = skipUnchanged;
 		}
 
 		@Override
-		public Boolean call( final Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > watershedBlock ) throws Exception
+		public DataBlock< ? > dataBlock( final DatasetAttributes attrsOut, final Tuple2< HashWrapper< long[] >, RandomAccessibleInterval< UnsignedLongType > > watershedBlock ) throws Exception
 		{
 			final HashWrapper< long[] > block = watershedBlock._1();
 			final RandomAccessibleInterval< UnsignedLongType > data = watershedBlock._2();
-			final N5FSWriter writer = new N5FSWriter( group );
-			final DatasetAttributes attrsOut = writer.getDatasetAttributes( dataset );
 
 			final int[] bs = blockSize.clone();
 
-			final UnionFindSparse uf = new UnionFindSparse();
+			final UnionFindSparseCompact uf = new UnionFindSparseCompact();
 
 			final ArrayList< long[] > cellPositions = new ArrayList<>();
 
@@ -103,37 +107,8 @@ public class ApplyHierarchicalUnionFind
 				}
 				cellPositions.add( cellPos );
 //				System.out.println( factor + " " + Arrays.toString( cellPos ) + " " + Arrays.toString( position ) );
-				final File f = new File( serializationPattern.apply( factor, cellPos ) );
-//				System.out.println( "READING FILE " + f.getAbsolutePath() );
-				try (final FileInputStream fis = new FileInputStream( f ))
-				{
-					final byte[] fileData = new byte[ ( int ) f.length() ];
-					fis.read( fileData );
-					final ByteBuffer wrappedData = ByteBuffer.wrap( fileData );
-					final int numMatches = wrappedData.getInt();
-
-					final long[] keys = new long[ numMatches ];
-					final long[] values = new long[ numMatches ];
-
-					for ( int i = 0; i < numMatches; ++i )
-						keys[ i ] = wrappedData.getLong();
-//						if ( keys[ i ] == 13682 )
-//							System.out.print( "YOOOOOO! key " + keys[ i ] );
-
-					for ( int i = 0; i < numMatches; ++i )
-						values[ i ] = wrappedData.getLong();
-//						if ( values[ i ] == 13682 )
-//							System.out.print( "YOOOOOO! value" + values[ i ] );
-
-					for ( int i = 0; i < numMatches; ++i )
-					{
-						final long r1 = uf.findRoot( keys[ i ] );
-						final long r2 = uf.findRoot( values[ i ] );
-//						System.out.println( "JOINING " + r1 + " " + r2 );
-						uf.join( r1, r2 );
-					}
-
-				}
+				final Tuple2< long[], long[] > matches = HierarchicalUnionFindInOverlaps.readFromFile( serializationPattern.apply( factor, cellPos ) );
+				uf.joinAll( matches._1(), matches._2() );
 			}
 
 //			System.out.println( Arrays.toString( block.getData() ) + " " + cellPositions.stream().map( Arrays::toString ).reduce( "", ( s1, s2 ) -> s1 + ", " + s2 ) );
@@ -145,24 +120,25 @@ public class ApplyHierarchicalUnionFind
 			final FinalInterval fi = new FinalInterval( min, max );
 
 			final int[] dataBlockSize = Intervals.dimensionsAsIntArray( fi );
-			final long[] dataArray = new long[ Arrays.stream( dataBlockSize ).reduce( 1, ( i1, i2 ) -> i1 * i2 ) ];
-			final Cursor< UnsignedLongType > dataCursor = Views.flatIterable( Views.interval( data, fi ) ).cursor();
-			for ( int i = 0; dataCursor.hasNext(); ++i )
+			final long[] dataArray = LongArrayBlocks.copy( data, fi );
+			boolean isChanged = false;
+			for ( int i = 0; i < dataArray.length; ++i )
 			{
-				final long v = dataCursor.next().getIntegerLong();
+				final long v = dataArray[ i ];
 				if ( v != 0 )
 				{
-					final long r = uf.findRoot( v );
+					final long r = uf.contains( v ) ? uf.findRoot( v ) : v;
 //					if ( v != r && ( r == 13682 || v == 13682 ) )
 //						System.out.println( "Setting root to " + v + " " + r + " " + i );
 					dataArray[ i ] = r;
+					isChanged |= r != v;
 				}
 			}
+			if ( skipUnchanged && !isChanged )
+				return null;
 			final long[] cellPos = block.getData().clone();
 			grid.getValue().getCellPosition( block.getData().clone(), cellPos );
-			writer.writeBlock( dataset, attrsOut, new LongArrayDataBlock( dataBlockSize, cellPos, dataArray ) );
-
-			return true;
+			return new LongArrayDataBlock( dataBlockSize, cellPos, dataArray );
 		}
 
 	}
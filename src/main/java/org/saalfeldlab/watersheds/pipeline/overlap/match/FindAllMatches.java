@@ -1,16 +1,14 @@
 package org.saalfeldlab.watersheds.pipeline.overlap.match;
 
-import java.util.function.BiConsumer;
-
-import org.saalfeldlab.watersheds.UnionFindSparse;
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
 
 import scala.Tuple2;
 
-public class FindAllMatches implements BiConsumer< Tuple2< long[], long[] >, UnionFindSparse >
+public class FindAllMatches implements OverlapMatcher
 {
 
 	@Override
-	public void accept( final Tuple2< long[], long[] > data, final UnionFindSparse uf )
+	public void accept( final Tuple2< long[], long[] > data, final UnionFindSparseCompact uf )
 	{
 
 		final long[] lowerData = data._1();
@@ -1,109 +1,32 @@
 package org.saalfeldlab.watersheds.pipeline.overlap.match;
 
-import java.util.function.BiConsumer;
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
 
-import org.saalfeldlab.watersheds.UnionFindSparse;
-
-import gnu.trove.iterator.TLongLongIterator;
-import gnu.trove.iterator.TLongObjectIterator;
-import gnu.trove.list.array.TLongArrayList;
-import gnu.trove.map.hash.TLongLongHashMap;
-import gnu.trove.map.hash.TLongObjectHashMap;
 import scala.Tuple2;
 
-public class FindMatchesAgreementInBiggestOverlap implements BiConsumer< Tuple2< long[], long[] >, UnionFindSparse >
+/**
+ * Join labels that are each other's unique biggest overlap.
+ */
+public class FindMatchesAgreementInBiggestOverlap implements OverlapMatcher
 {
 
-	private static void addMatch( final TLongObjectHashMap< TLongLongHashMap > counts, final long id1, final long id2 )
-	{
-		if ( !counts.contains( id1 ) )
-			counts.put( id1, new TLongLongHashMap() );
-		final TLongLongHashMap c = counts.get( id1 );
-		c.put( id2, c.containsKey( id2 ) ? c.get( id2 ) + 1 : 1 );
-	}
+	private final OverlapCounts.Method method;
 
-	private static TLongObjectHashMap< TLongArrayList > getMaxOverlap( final TLongObjectHashMap< TLongLongHashMap > counts )
+	public FindMatchesAgreementInBiggestOverlap()
 	{
-		final TLongObjectHashMap< TLongArrayList > overlapArgMax = new TLongObjectHashMap<>();
-
-		for ( final TLongObjectIterator< TLongLongHashMap > it = counts.iterator(); it.hasNext(); )
-		{
-			it.advance();
-			final long id1 = it.key();
-			final TLongArrayList matchesList = new TLongArrayList();
-			overlapArgMax.put( id1, matchesList );
-			long maxCount = 0;
-			for ( final TLongLongIterator otherIt = it.value().iterator(); otherIt.hasNext(); )
-			{
-				otherIt.advance();
-				final long id2 = otherIt.key();
-				final long count = otherIt.value();
-				if ( count > maxCount )
-				{
-					maxCount = count;
-					matchesList.clear();
-					matchesList.add( id2 );
-				}
-				else if ( count == maxCount )
-					matchesList.add( id2 );
-			}
-		}
-
-		return overlapArgMax;
+		this( OverlapCounts.Method.HASH );
 	}
 
-	private static void findUniqueMatches(
-			final UnionFindSparse uf,
-			final TLongObjectHashMap< TLongArrayList > forwardMaxOverlaps,
-			final TLongObjectHashMap< TLongArrayList > backwardMaxOverlaps )
+	public FindMatchesAgreementInBiggestOverlap( final OverlapCounts.Method method )
 	{
-		for ( final TLongObjectIterator< TLongArrayList > it = forwardMaxOverlaps.iterator(); it.hasNext(); )
-		{
-			it.advance();
-			final TLongArrayList list1 = it.value();
-			if ( list1 != null && list1.size() == 1 )
-			{
-				final long id1 = it.key();
-				final long id2 = list1.get( 0 );
-				final TLongArrayList list2 = backwardMaxOverlaps.get( id2 );
-				if ( list2 != null && list2.size() == 1 && list2.get( 0 ) == id1 )
-					//					System.out.println( "JOINING " + id1 + " " + id2 );
-					uf.join( uf.findRoot( id1 ), uf.findRoot( id2 ) );
-			}
-		}
+		super();
+		this.method = method;
 	}
 
 	@Override
-	public void accept( final Tuple2< long[], long[] > data, final UnionFindSparse uf )
+	public void accept( final Tuple2< long[], long[] > data, final UnionFindSparseCompact uf )
 	{
-
-		final TLongObjectHashMap< TLongLongHashMap > forwardCounts = new TLongObjectHashMap<>();
-		final TLongObjectHashMap< TLongLongHashMap > backwardCounts = new TLongObjectHashMap<>();
-
-		final long[] lowerData = data._1();
-		final long[] upperData = data._2();
-
-		for ( int i = 0; i < upperData.length; ++i )
-		{
-			final long ud = upperData[ i ];
-			final long ld = lowerData[ i ];
-			if ( ud != 0 && ld != 0 )
-			{
-				addMatch( forwardCounts, ud, ld );
-				addMatch( backwardCounts, ld, ud );
-			}
-		}
-
-		final TLongObjectHashMap< TLongArrayList > forwardMaxOverlaps = getMaxOverlap( forwardCounts );
-		final TLongObjectHashMap< TLongArrayList > backwardMaxOverlaps = getMaxOverlap( backwardCounts );
-
-		findUniqueMatches( uf, forwardMaxOverlaps, backwardMaxOverlaps );
-
-//		System.out.println( "FORWARD  OVERLAPS " + forwardMaxOverlaps );
-//		System.out.println( "BACKWARD OVERLAPS " + backwardMaxOverlaps );
-
-		// should not be necessary because only symmetric matches are valid
-//			findUniqueMatches( uf, backwardMaxOverlaps, forwardMaxOverlaps );
-
+		final long[][] matches = OverlapCounts.count( data._2(), data._1(), method ).mutualBiggestOverlaps();
+		uf.joinAll( matches[ 0 ], matches[ 1 ] );
 	}
 }
@@ -0,0 +1,38 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.match;
+
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
+
+import scala.Tuple2;
+
+/**
+ * Join all pairs of labels that overlap in more than {@code threshold}
+ * voxels.
+ */
+public class FindMatchesMinimumOverlap implements OverlapMatcher
+{
+
+	private final long threshold;
+
+	private final OverlapCounts.Method method;
+
+	public FindMatchesMinimumOverlap( final long threshold )
+	{
+		this( threshold, OverlapCounts.Method.HASH );
+	}
+
+	public FindMatchesMinimumOverlap( final long threshold, final OverlapCounts.Method method )
+	{
+		super();
+		this.threshold = threshold;
+		this.method = method;
+	}
+
+	@Override
+	public void accept( final Tuple2< long[], long[] > data, final UnionFindSparseCompact uf )
+	{
+		final OverlapCounts counts = OverlapCounts.count( data._2(), data._1(), method );
+		for ( int k = 0; k < counts.size(); ++k )
+			if ( counts.count( k ) > threshold )
+				uf.join( counts.id1( k ), counts.id2( k ) );
+	}
+}
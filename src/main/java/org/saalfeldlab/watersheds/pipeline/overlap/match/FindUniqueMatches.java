@@ -1,18 +1,16 @@
 package org.saalfeldlab.watersheds.pipeline.overlap.match;
 
-import java.util.function.BiConsumer;
-
-import org.saalfeldlab.watersheds.UnionFindSparse;
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
 
 import gnu.trove.iterator.TLongLongIterator;
 import gnu.trove.map.hash.TLongLongHashMap;
 import scala.Tuple2;
 
-public class FindUniqueMatches implements BiConsumer< Tuple2< long[], long[] >, UnionFindSparse >
+public class FindUniqueMatches implements OverlapMatcher
 {
 
 	@Override
-	public void accept( final Tuple2< long[], long[] > data, final UnionFindSparse uf )
+	public void accept( final Tuple2< long[], long[] > data, final UnionFindSparseCompact uf )
 	{
 
 		final long[] lowerData = data._1();
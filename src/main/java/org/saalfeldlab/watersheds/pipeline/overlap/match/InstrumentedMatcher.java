@@ -0,0 +1,71 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.match;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.LongAccumulator;
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
+
+import scala.Tuple2;
+
+/**
+ * Accumulate the number of matched faces, time spent matching and number of
+ * merges (joins that merged two sets) across all tasks that use a matcher.
+ * Must be passed into tasks through the closure, not through a broadcast, for
+ * the accumulators to be updated. Matchers run inside transformations, so
+ * tasks that are recomputed or run speculatively are counted again and all
+ * values are upper bounds rather than exact counts.
+ */
+public class InstrumentedMatcher implements OverlapMatcher
+{
+
+	private final OverlapMatcher matcher;
+
+	private final LongAccumulator faces;
+
+	private final LongAccumulator nanoSeconds;
+
+	private final LongAccumulator merges;
+
+	public InstrumentedMatcher( final JavaSparkContext sc, final String name, final OverlapMatcher matcher )
+	{
+		super();
+		this.matcher = matcher;
+		this.faces = sc.sc().longAccumulator( name + " faces" );
+		this.nanoSeconds = sc.sc().longAccumulator( name + " time (ns)" );
+		this.merges = sc.sc().longAccumulator( name + " merges" );
+	}
+
+	@Override
+	public void accept( final Tuple2< long[], long[] > data, final UnionFindSparseCompact uf )
+	{
+		final long sizeBefore = uf.size();
+		final long setsBefore = uf.setCount();
+		final long t0 = System.nanoTime();
+		matcher.accept( data, uf );
+		nanoSeconds.add( System.nanoTime() - t0 );
+		faces.add( 1 );
+		// every new id adds a set, every effective join removes one
+		merges.add( uf.size() - sizeBefore - ( uf.setCount() - setsBefore ) );
+	}
+
+	public long faces()
+	{
+		return faces.value();
+	}
+
+	public long nanoSeconds()
+	{
+		return nanoSeconds.value();
+	}
+
+	public long merges()
+	{
+		return merges.value();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%s: %d merges from %d faces in %.3fs (approximate)", matcher.getClass().getSimpleName(), merges(), faces(), nanoSeconds() * 1e-9 );
+	}
+
+}
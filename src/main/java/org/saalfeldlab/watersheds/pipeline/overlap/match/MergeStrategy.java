@@ -0,0 +1,48 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.match;
+
+/**
+ * Available {@link OverlapMatcher}s.
+ */
+public enum MergeStrategy
+{
+	/**
+	 * Join all overlapping labels, see {@link FindAllMatches}.
+	 */
+	ALL,
+	/**
+	 * Join labels that only overlap with each other, see
+	 * {@link FindUniqueMatches}.
+	 */
+	UNIQUE,
+	/**
+	 * Join labels that are each other's unique biggest overlap, see
+	 * {@link FindMatchesAgreementInBiggestOverlap}.
+	 */
+	BIGGEST_OVERLAP,
+	/**
+	 * Join labels that overlap in more than a threshold number of voxels, see
+	 * {@link FindMatchesMinimumOverlap}.
+	 */
+	MINIMUM_OVERLAP;
+
+	/**
+	 *
+	 * @param minimumOverlap
+	 *            only used for {@link #MINIMUM_OVERLAP}
+	 */
+	public OverlapMatcher create( final long minimumOverlap )
+	{
+		switch ( this )
+		{
+		case ALL:
+			return new FindAllMatches();
+		case UNIQUE:
+			return new FindUniqueMatches();
+		case MINIMUM_OVERLAP:
+			return new FindMatchesMinimumOverlap( minimumOverlap );
+		case BIGGEST_OVERLAP:
+		default:
+			return new FindMatchesAgreementInBiggestOverlap();
+		}
+	}
+}
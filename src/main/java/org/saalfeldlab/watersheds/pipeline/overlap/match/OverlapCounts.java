@@ -0,0 +1,351 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.match;
+
+import java.util.Arrays;
+
+/**
+ * Voxel counts of all pairs of non-zero labels {@code (id1, id2)} that overlap
+ * in two label planes. Labels are mapped to dense local indices on each side
+ * and pairs are counted in a flat table, either by hashing the packed pair of
+ * local indices ({@link #hashed(long[], long[])}) or by radix sorting packed
+ * pairs ({@link #sorted(long[], long[])}), which is faster for very dense
+ * faces with many different pairs.
+ */
+public class OverlapCounts
+{
+
+	public enum Method
+	{
+		HASH,
+		SORT;
+	}
+
+	private final long[] ids1;
+
+	private final long[] ids2;
+
+	private final int[] indices1;
+
+	private final int[] indices2;
+
+	private final int[] counts;
+
+	private OverlapCounts( final long[] ids1, final long[] ids2, final int[] indices1, final int[] indices2, final int[] counts )
+	{
+		super();
+		this.ids1 = ids1;
+		this.ids2 = ids2;
+		this.indices1 = indices1;
+		this.indices2 = indices2;
+		this.counts = counts;
+	}
+
+	public static OverlapCounts count( final long[] data1, final long[] data2, final Method method )
+	{
+		return method == Method.SORT ? sorted( data1, data2 ) : hashed( data1, data2 );
+	}
+
+	public static OverlapCounts hashed( final long[] data1, final long[] data2 )
+	{
+		final LocalIds localIds1 = new LocalIds();
+		final LocalIds localIds2 = new LocalIds();
+		final PairCountTable table = new PairCountTable();
+		for ( int i = 0; i < data1.length; ++i )
+		{
+			final long id1 = data1[ i ];
+			final long id2 = data2[ i ];
+			if ( id1 != 0 && id2 != 0 )
+				table.increment( ( long ) localIds1.index( id1 ) << 32 | localIds2.index( id2 ) );
+		}
+
+		final int[] indices1 = new int[ table.size ];
+		final int[] indices2 = new int[ table.size ];
+		final int[] counts = new int[ table.size ];
+		for ( int slot = 0, k = 0; slot < table.keys.length; ++slot )
+		{
+			final long key = table.keys[ slot ];
+			if ( key != PairCountTable.EMPTY )
+			{
+				indices1[ k ] = ( int ) ( key >>> 32 );
+				indices2[ k ] = ( int ) key;
+				counts[ k ] = table.counts[ slot ];
+				++k;
+			}
+		}
+		return new OverlapCounts( localIds1.ids(), localIds2.ids(), indices1, indices2, counts );
+	}
+
+	public static OverlapCounts sorted( final long[] data1, final long[] data2 )
+	{
+		final LocalIds localIds1 = new LocalIds();
+		final LocalIds localIds2 = new LocalIds();
+		final int[] local1 = new int[ data1.length ];
+		final int[] local2 = new int[ data1.length ];
+		int n = 0;
+		for ( int i = 0; i < data1.length; ++i )
+		{
+			final long id1 = data1[ i ];
+			final long id2 = data2[ i ];
+			if ( id1 != 0 && id2 != 0 )
+			{
+				local1[ n ] = localIds1.index( id1 );
+				local2[ n ] = localIds2.index( id2 );
+				++n;
+			}
+		}
+
+		// pack with smallest possible range to minimize number of radix passes
+		final long numIds2 = localIds2.size;
+		final long[] pairs = new long[ n ];
+		for ( int i = 0; i < n; ++i )
+			pairs[ i ] = local1[ i ] * numIds2 + local2[ i ];
+		radixSort( pairs, localIds1.size * numIds2 );
+
+		int numPairs = 0;
+		for ( int i = 0; i < n; ++i )
+			if ( i == 0 || pairs[ i ] != pairs[ i - 1 ] )
+				++numPairs;
+		final int[] indices1 = new int[ numPairs ];
+		final int[] indices2 = new int[ numPairs ];
+		final int[] counts = new int[ numPairs ];
+		for ( int start = 0, k = 0; start < n; ++k )
+		{
+			final long pair = pairs[ start ];
+			int end = start + 1;
+			while ( end < n && pairs[ end ] == pair )
+				++end;
+			indices1[ k ] = ( int ) ( pair / numIds2 );
+			indices2[ k ] = ( int ) ( pair % numIds2 );
+			counts[ k ] = end - start;
+			start = end;
+		}
+		return new OverlapCounts( localIds1.ids(), localIds2.ids(), indices1, indices2, counts );
+	}
+
+	public int size()
+	{
+		return counts.length;
+	}
+
+	public long id1( final int pair )
+	{
+		return ids1[ indices1[ pair ] ];
+	}
+
+	public long id2( final int pair )
+	{
+		return ids2[ indices2[ pair ] ];
+	}
+
+	public int count( final int pair )
+	{
+		return counts[ pair ];
+	}
+
+	/**
+	 * Find, for each label, the label on the other side with the biggest
+	 * overlap, in a single pass over all pairs.
+	 *
+	 * @return {@code (id1, id2)} pairs that are the unique biggest overlap for
+	 *         both {@code id1} and {@code id2}, as {@code long[][]{ ids1, ids2 }}
+	 */
+	public long[][] mutualBiggestOverlaps()
+	{
+		final int[] max1 = new int[ ids1.length ];
+		final int[] max2 = new int[ ids2.length ];
+		final int[] argMax1 = new int[ ids1.length ];
+		final int[] argMax2 = new int[ ids2.length ];
+		for ( int k = 0; k < counts.length; ++k )
+		{
+			final int i1 = indices1[ k ];
+			final int i2 = indices2[ k ];
+			final int c = counts[ k ];
+
+			if ( c > max1[ i1 ] )
+			{
+				max1[ i1 ] = c;
+				argMax1[ i1 ] = i2;
+			}
+			else if ( c == max1[ i1 ] )
+				argMax1[ i1 ] = -1;
+
+			if ( c > max2[ i2 ] )
+			{
+				max2[ i2 ] = c;
+				argMax2[ i2 ] = i1;
+			}
+			else if ( c == max2[ i2 ] )
+				argMax2[ i2 ] = -1;
+		}
+
+		final long[] matches1 = new long[ ids1.length ];
+		final long[] matches2 = new long[ ids1.length ];
+		int numMatches = 0;
+		for ( int i1 = 0; i1 < ids1.length; ++i1 )
+		{
+			final int i2 = argMax1[ i1 ];
+			if ( i2 >= 0 && argMax2[ i2 ] == i1 )
+			{
+				matches1[ numMatches ] = ids1[ i1 ];
+				matches2[ numMatches ] = ids2[ i2 ];
+				++numMatches;
+			}
+		}
+		return new long[][] { Arrays.copyOf( matches1, numMatches ), Arrays.copyOf( matches2, numMatches ) };
+	}
+
+	/**
+	 * LSD radix sort of non-negative values {@code < bound}, 16 bits per pass.
+	 */
+	private static void radixSort( final long[] values, final long bound )
+	{
+		final int bits = 64 - Long.numberOfLeadingZeros( Math.max( bound - 1, 1 ) );
+		long[] source = values;
+		long[] target = new long[ values.length ];
+		final int[] offsets = new int[ 1 << 16 ];
+		for ( int shift = 0; shift < bits; shift += 16 )
+		{
+			Arrays.fill( offsets, 0 );
+			for ( final long v : source )
+				++offsets[ ( int ) ( v >>> shift & 0xffff ) ];
+			for ( int i = 0, sum = 0; i < offsets.length; ++i )
+			{
+				final int c = offsets[ i ];
+				offsets[ i ] = sum;
+				sum += c;
+			}
+			for ( final long v : source )
+				target[ offsets[ ( int ) ( v >>> shift & 0xffff ) ]++ ] = v;
+			final long[] tmp = source;
+			source = target;
+			target = tmp;
+		}
+		if ( source != values )
+			System.arraycopy( source, 0, values, 0, values.length );
+	}
+
+	/**
+	 * Open addressing map from non-zero labels to dense indices in order of
+	 * first appearance.
+	 */
+	private static class LocalIds
+	{
+
+		private long[] keys = new long[ 64 ];
+
+		private int[] values = new int[ 64 ];
+
+		private long[] ids = new long[ 16 ];
+
+		private int size = 0;
+
+		public int index( final long id )
+		{
+			int slot = hash( id, keys.length );
+			for ( long k = keys[ slot ]; k != 0; k = keys[ slot ] )
+			{
+				if ( k == id )
+					return values[ slot ];
+				slot = slot + 1 & keys.length - 1;
+			}
+
+			keys[ slot ] = id;
+			values[ slot ] = size;
+			if ( size == ids.length )
+				ids = Arrays.copyOf( ids, 2 * size );
+			ids[ size ] = id;
+			++size;
+			if ( 2 * size > keys.length )
+				grow();
+			return size - 1;
+		}
+
+		public long[] ids()
+		{
+			return Arrays.copyOf( ids, size );
+		}
+
+		private void grow()
+		{
+			final long[] oldKeys = keys;
+			final int[] oldValues = values;
+			keys = new long[ 2 * oldKeys.length ];
+			values = new int[ keys.length ];
+			for ( int i = 0; i < oldKeys.length; ++i )
+				if ( oldKeys[ i ] != 0 )
+				{
+					int slot = hash( oldKeys[ i ], keys.length );
+					while ( keys[ slot ] != 0 )
+						slot = slot + 1 & keys.length - 1;
+					keys[ slot ] = oldKeys[ i ];
+					values[ slot ] = oldValues[ i ];
+				}
+		}
+
+	}
+
+	/**
+	 * Open addressing table from packed pairs of local indices to counts.
+	 */
+	private static class PairCountTable
+	{
+
+		private static final long EMPTY = -1;
+
+		private long[] keys = newKeys( 256 );
+
+		private int[] counts = new int[ 256 ];
+
+		private int size = 0;
+
+		public void increment( final long key )
+		{
+			int slot = hash( key, keys.length );
+			for ( long k = keys[ slot ]; k != EMPTY; k = keys[ slot ] )
+			{
+				if ( k == key )
+				{
+					++counts[ slot ];
+					return;
+				}
+				slot = slot + 1 & keys.length - 1;
+			}
+
+			keys[ slot ] = key;
+			counts[ slot ] = 1;
+			++size;
+			if ( 2 * size > keys.length )
+				grow();
+		}
+
+		private void grow()
+		{
+			final long[] oldKeys = keys;
+			final int[] oldCounts = counts;
+			keys = newKeys( 2 * oldKeys.length );
+			counts = new int[ keys.length ];
+			for ( int i = 0; i < oldKeys.length; ++i )
+				if ( oldKeys[ i ] != EMPTY )
+				{
+					int slot = hash( oldKeys[ i ], keys.length );
+					while ( keys[ slot ] != EMPTY )
+						slot = slot + 1 & keys.length - 1;
+					keys[ slot ] = oldKeys[ i ];
+					counts[ slot ] = oldCounts[ i ];
+				}
+		}
+
+		private static long[] newKeys( final int capacity )
+		{
+			final long[] keys = new long[ capacity ];
+			Arrays.fill( keys, EMPTY );
+			return keys;
+		}
+
+	}
+
+	private static int hash( final long key, final int capacity )
+	{
+		return ( int ) ( key * 0x9E3779B97F4A7C15L >>> 32 ) & capacity - 1;
+	}
+
+}
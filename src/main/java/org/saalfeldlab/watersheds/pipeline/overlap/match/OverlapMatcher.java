@@ -0,0 +1,18 @@
+package org.saalfeldlab.watersheds.pipeline.overlap.match;
+
+import java.io.Serializable;
+import java.util.function.BiConsumer;
+
+import org.saalfeldlab.watersheds.UnionFindSparseCompact;
+
+import scala.Tuple2;
+
+/**
+ * Find equivalent labels in two overlapping label planes
+ * {@code (lowerData, upperData)} of neighboring blocks and join them in a
+ * union find.
+ */
+public interface OverlapMatcher extends BiConsumer< Tuple2< long[], long[] >, UnionFindSparseCompact >, Serializable
+{
+
+}